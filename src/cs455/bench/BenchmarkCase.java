@@ -0,0 +1,53 @@
+package cs455.bench;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// One benchmark with one set of parameters. The fixture builds the workload just before it is measured,
+// so a suite can register cases that hold threads or buffers without them all existing at once.
+public class BenchmarkCase {
+	
+	// Builds a fresh workload. Workloads that are also AutoCloseable are closed after measurement.
+	public interface Fixture {
+		Workload setUp() throws Exception;
+	}
+	
+	// Implemented by workloads that report more than throughput
+	public interface SecondaryMetrics {
+		void resetMetrics();					// Called when measurement starts, after warmup
+		Map<String, Double> collectMetrics();	// Called when measurement ends; names are reported as they are
+	}
+	
+	final String name;
+	final Map<String, String> params;
+	final Fixture fixture;
+	int batchSize;								// Operations per Workload.run() call
+	
+	public BenchmarkCase(String name, Fixture fixture) {
+		this.name = name;
+		this.params = new LinkedHashMap<String, String>();
+		this.fixture = fixture;
+		this.batchSize = 1;
+	}
+	
+	public BenchmarkCase param(String key, Object value) {
+		params.put(key, String.valueOf(value));
+		return this;
+	}
+	
+	public BenchmarkCase batch(int ops) {
+		this.batchSize = ops;
+		return this;
+	}
+	
+	// Name and parameters, e.g. HashingBenchmarks.sha1Raw:size=8192
+	public String getId() {
+		StringBuilder id = new StringBuilder(name);
+		String separator = ":";
+		for (Map.Entry<String, String> param : params.entrySet()) {
+			id.append(separator).append(param.getKey()).append('=').append(param.getValue());
+			separator = ",";
+		}
+		return id.toString();
+	}
+}
@@ -0,0 +1,252 @@
+package cs455.bench;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import cs455.util.CommandLineOptions;
+
+// Runs the microbenchmark suites in this package. Each case gets warmup iterations to let the JIT
+// settle, then timed iterations whose mean throughput is reported with a 99.9% confidence interval.
+// Results are written as JSON in the same shape JMH uses, so a previous run can serve as a baseline:
+// any case whose score falls further below the baseline than the tolerance fails the run.
+public class BenchmarkRunner {
+
+	private final Pattern filter;
+	private final int warmupIterations;
+	private final int measurementIterations;
+	private final long iterationNanos;
+
+	// Outcome of one case
+	static final class Result {
+		final BenchmarkCase benchmark;
+		final double[] scores;					// Operations per second of each measured iteration
+		final Map<String, Double> secondary;
+
+		Result(BenchmarkCase benchmark, double[] scores, Map<String, Double> secondary) {
+			this.benchmark = benchmark;
+			this.scores = scores;
+			this.secondary = secondary;
+		}
+
+		double getScore() {
+			double sum = 0;
+			for (double score : scores)
+				sum += score;
+			return sum / scores.length;
+		}
+
+		// Half width of the 99.9% confidence interval around the mean
+		double getError() {
+			int n = scores.length;
+			if (n < 2)
+				return Double.NaN;
+			double mean = getScore();
+			double squares = 0;
+			for (double score : scores)
+				squares += (score - mean) * (score - mean);
+			return studentT999(n - 1) * Math.sqrt(squares / (n - 1)) / Math.sqrt(n);
+		}
+	}
+
+	public BenchmarkRunner(Pattern filter, int warmupIterations, int measurementIterations, long iterationNanos) {
+		this.filter = filter;
+		this.warmupIterations = warmupIterations;
+		this.measurementIterations = measurementIterations;
+		this.iterationNanos = iterationNanos;
+	}
+
+	public static void main(String[] args) throws Exception {
+		BenchmarkRunner runner = null;
+		CommandLineOptions options = null;
+		try {
+			options = new CommandLineOptions(args, 0);
+			runner = new BenchmarkRunner(Pattern.compile(options.getString("filter", ".*")), options.getInt("warmup", 2), options.getInt("iterations", 5),
+					options.getLong("time-ms", 500) * 1000000L);
+			if (runner.warmupIterations < 0 || runner.measurementIterations < 1 || runner.iterationNanos <= 0)
+				throw new IllegalArgumentException("--warmup must not be negative, --iterations and --time-ms must be at least 1");
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			System.out.println(usage());
+			System.exit(1);
+		}
+
+		ArrayList<BenchmarkCase> cases = new ArrayList<BenchmarkCase>();
+		HashingBenchmarks.register(cases);
+		FramingBenchmarks.register(cases);
+		MessageBenchmarks.register(cases);
+		DispatchBenchmarks.register(cases);
+
+		ArrayList<Result> results = new ArrayList<Result>();
+		for (BenchmarkCase benchmark : cases) {
+			if (runner.filter.matcher(benchmark.getId()).find())
+				results.add(runner.measure(benchmark));
+		}
+		if (results.isEmpty()) {
+			System.out.println("No benchmark matches --filter=" + runner.filter);
+			System.exit(1);
+		}
+
+		printSummary(results);
+		String out = options.getString("out", null);
+		if (out != null) {
+			try (PrintWriter writer = new PrintWriter(new FileWriter(out))) {
+				writer.print(toJson(results));
+			}
+			System.out.println("Results written to " + out);
+		}
+		String baseline = options.getString("baseline", null);
+		if (baseline != null && !compare(results, readBaseline(baseline), options.getDouble("tolerance", 10) / 100.0))
+			System.exit(2);
+	}
+
+	Result measure(BenchmarkCase benchmark) throws Exception {
+		System.out.println("# " + benchmark.getId());
+		Workload workload = benchmark.fixture.setUp();
+		try {
+			for (int i = 0; i < warmupIterations; i++)
+				System.out.println(String.format(Locale.ROOT, "  Warmup %d: %,.1f ops/s", i + 1, iterate(workload, benchmark.batchSize)));
+			if (workload instanceof BenchmarkCase.SecondaryMetrics)
+				((BenchmarkCase.SecondaryMetrics) workload).resetMetrics();
+			double[] scores = new double[measurementIterations];
+			for (int i = 0; i < measurementIterations; i++) {
+				scores[i] = iterate(workload, benchmark.batchSize);
+				System.out.println(String.format(Locale.ROOT, "  Iteration %d: %,.1f ops/s", i + 1, scores[i]));
+			}
+			Map<String, Double> secondary = (workload instanceof BenchmarkCase.SecondaryMetrics)
+					? ((BenchmarkCase.SecondaryMetrics) workload).collectMetrics() : new LinkedHashMap<String, Double>();
+			return new Result(benchmark, scores, secondary);
+		} finally {
+			if (workload instanceof AutoCloseable)
+				((AutoCloseable) workload).close();
+		}
+	}
+
+	// Runs whole batches until the iteration time is used up; returns operations per second
+	private double iterate(Workload workload, int batchSize) throws Exception {
+		long ops = 0;
+		long start = System.nanoTime();
+		long deadline = start + iterationNanos;
+		long now;
+		do {
+			Blackhole.consume(workload.run(batchSize));
+			ops += batchSize;
+			now = System.nanoTime();
+		} while (now - deadline < 0);
+		return ops * 1e9 / (now - start);
+	}
+
+	// Two-sided t value for 99.9% confidence
+	private static double studentT999(int degreesOfFreedom) {
+		double[] table = { 636.62, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587 };
+		if (degreesOfFreedom <= table.length)
+			return table[degreesOfFreedom - 1];
+		if (degreesOfFreedom <= 15)
+			return 4.073;
+		if (degreesOfFreedom <= 20)
+			return 3.850;
+		if (degreesOfFreedom <= 30)
+			return 3.646;
+		return 3.291;
+	}
+
+	private static void printSummary(List<Result> results) {
+		int width = 0;
+		for (Result result : results)
+			width = Math.max(width, result.benchmark.getId().length());
+		System.out.println();
+		System.out.println(String.format(Locale.ROOT, "%-" + width + "s  %18s  %14s", "Benchmark", "Score (ops/s)", "Error (99.9%)"));
+		for (Result result : results) {
+			System.out.print(String.format(Locale.ROOT, "%-" + width + "s  %,18.1f  %14s", result.benchmark.getId(), result.getScore(), "+/- " + String.format(Locale.ROOT, "%,.1f", result.getError())));
+			for (Map.Entry<String, Double> metric : result.secondary.entrySet())
+				System.out.print(String.format(Locale.ROOT, "  %s=%.1f", metric.getKey(), metric.getValue()));
+			System.out.println();
+		}
+	}
+
+	private static String toJson(List<Result> results) {
+		StringBuilder json = new StringBuilder("[\n");
+		for (int r = 0; r < results.size(); r++) {
+			Result result = results.get(r);
+			json.append("  {\n");
+			json.append("    \"benchmark\": \"").append(result.benchmark.name).append("\",\n");
+			json.append("    \"mode\": \"thrpt\",\n");
+			json.append("    \"params\": {");
+			String separator = "";
+			for (Map.Entry<String, String> param : result.benchmark.params.entrySet()) {
+				json.append(separator).append('"').append(param.getKey()).append("\": \"").append(param.getValue()).append('"');
+				separator = ", ";
+			}
+			json.append("},\n");
+			double score = result.getScore();
+			double error = result.getError();
+			json.append("    \"primaryMetric\": {\"score\": ").append(number(score)).append(", \"scoreError\": ").append(number(error))
+					.append(", \"scoreConfidence\": [").append(number(score - error)).append(", ").append(number(score + error))
+					.append("], \"scoreUnit\": \"ops/s\", \"rawData\": [[");
+			for (int i = 0; i < result.scores.length; i++)
+				json.append(i == 0 ? "" : ", ").append(number(result.scores[i]));
+			json.append("]]},\n");
+			json.append("    \"secondaryMetrics\": {");
+			separator = "";
+			for (Map.Entry<String, Double> metric : result.secondary.entrySet()) {
+				json.append(separator).append('"').append(metric.getKey()).append("\": {\"score\": ").append(number(metric.getValue())).append('}');
+				separator = ", ";
+			}
+			json.append("}\n");
+			json.append(r == results.size() - 1 ? "  }\n" : "  },\n");
+		}
+		return json.append("]\n").toString();
+	}
+
+	private static String number(double value) {
+		return Double.isNaN(value) ? "\"NaN\"" : String.format(Locale.ROOT, "%.3f", value);
+	}
+
+	// Benchmark id -> score from a results file this runner wrote earlier
+	private static Map<String, Double> readBaseline(String path) throws IOException {
+		String json = new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8);
+		Pattern entry = Pattern.compile("\"benchmark\": \"([^\"]+)\",\\s*\"mode\": \"[^\"]*\",\\s*\"params\": \\{([^}]*)\\},\\s*\"primaryMetric\": \\{\"score\": ([-0-9.eE]+)");
+		Pattern param = Pattern.compile("\"([^\"]+)\": \"([^\"]*)\"");
+		HashMap<String, Double> scores = new HashMap<String, Double>();
+		Matcher matcher = entry.matcher(json);
+		while (matcher.find()) {
+			BenchmarkCase key = new BenchmarkCase(matcher.group(1), null);
+			Matcher params = param.matcher(matcher.group(2));
+			while (params.find())
+				key.param(params.group(1), params.group(2));
+			scores.put(key.getId(), Double.parseDouble(matcher.group(3)));
+		}
+		return scores;
+	}
+
+	// Returns false if any case fell more than the tolerance below its baseline score
+	private static boolean compare(List<Result> results, Map<String, Double> baseline, double tolerance) {
+		boolean passed = true;
+		System.out.println();
+		for (Result result : results) {
+			Double previous = baseline.get(result.benchmark.getId());
+			if (previous == null || previous <= 0)
+				continue;
+			double change = result.getScore() / previous - 1.0;
+			boolean regressed = change < -tolerance;
+			System.out.println(String.format(Locale.ROOT, "%s %s: %+.1f%% against baseline", regressed ? "REGRESSION" : "ok        ", result.benchmark.getId(), change * 100));
+			passed &= !regressed;
+		}
+		return passed;
+	}
+
+	private static String usage() {
+		return "Usage:  BenchmarkRunner [--filter=<regex>] [--warmup=<iterations>] [--iterations=<n>] [--time-ms=<per-iteration>] [--out=<file>] [--baseline=<file>] [--tolerance=<percent>]";
+	}
+}
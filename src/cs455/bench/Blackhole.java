@@ -0,0 +1,18 @@
+package cs455.bench;
+
+// Sink for benchmark results. Writing to a volatile field forces each result to be computed.
+public final class Blackhole {
+	
+	private static volatile long sink;
+	
+	private Blackhole() {
+	}
+	
+	public static void consume(long value) {
+		sink += value;
+	}
+	
+	public static void consume(Object value) {
+		sink += System.identityHashCode(value);
+	}
+}
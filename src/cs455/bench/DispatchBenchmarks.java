@@ -0,0 +1,115 @@
+package cs455.bench;
+
+import java.io.IOException;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import cs455.scaling.server.DispatchMode;
+import cs455.scaling.server.ThreadPoolManager;
+import cs455.scaling.server.tasks.Task;
+import cs455.util.LatencyHistogram;
+import cs455.util.StatTracker;
+import cs455.util.StatTracker.Stage;
+
+// Hand-off cost of each dispatch mode: batches of empty tasks go through a real ThreadPoolManager and
+// the batch is done once a worker has started every one of them. Queue wait percentiles come from the
+// pool's own StatTracker and are reported alongside the throughput.
+public class DispatchBenchmarks {
+
+	private static final int[] THREADS = { 1, 2, 4, 8 };
+	private static final int BATCH = 1000;
+
+	// Does nothing but count itself when a worker picks it up
+	private static final class NoOpTask extends Task {
+		private final SelectionKey key;
+		private final LongAdder started;
+
+		NoOpTask(SelectionKey key, LongAdder started) {
+			this.key = key;
+			this.started = started;
+		}
+
+		@Override
+		public SelectionKey getKey() {
+			return key;
+		}
+
+		@Override
+		public void markStarted(long now) {
+			super.markStarted(now);
+			started.increment();
+		}
+	}
+
+	// A running pool plus the key its tasks carry. Workers only look at the key's attachment, which is
+	// null here, so an idle pipe registered with a selector is enough.
+	private static final class Pool implements Workload, BenchmarkCase.SecondaryMetrics, AutoCloseable {
+		private final StatTracker statTracker;
+		private final ThreadPoolManager tpManager;
+		private final Selector selector;
+		private final Pipe pipe;
+		private final SelectionKey key;
+		private final LongAdder started;
+		private long submitted;
+
+		Pool(DispatchMode mode, int threads) throws Exception {
+			this.statTracker = new StatTracker();
+			this.tpManager = new ThreadPoolManager(threads, statTracker, false, mode, 65536);
+			this.selector = Selector.open();
+			this.pipe = Pipe.open();
+			pipe.source().configureBlocking(false);
+			this.key = pipe.source().register(selector, SelectionKey.OP_READ);
+			this.started = new LongAdder();
+			new Thread(tpManager, "bench-tpm").start();
+		}
+
+		@Override
+		public long run(int ops) {
+			for (int i = 0; i < ops; i++) {
+				NoOpTask task = new NoOpTask(key, started);
+				while (!tpManager.enqueueTask(task))
+					Thread.yield();
+			}
+			submitted += ops;
+			while (started.sum() < submitted)
+				Thread.yield();
+			return submitted;
+		}
+
+		@Override
+		public void resetMetrics() {
+			statTracker.snapshot();
+		}
+
+		@Override
+		public Map<String, Double> collectMetrics() {
+			LatencyHistogram.Snapshot wait = statTracker.snapshot().getLatency(Stage.QUEUE_WAIT);
+			LinkedHashMap<String, Double> metrics = new LinkedHashMap<String, Double>();
+			metrics.put("queue_wait_p50_us", wait.getValueAtPercentile(0.50) / 1000.0);
+			metrics.put("queue_wait_p99_us", wait.getValueAtPercentile(0.99) / 1000.0);
+			return metrics;
+		}
+
+		@Override
+		public void close() throws IOException {
+			tpManager.shutdown();
+			selector.close();
+			pipe.source().close();
+			pipe.sink().close();
+		}
+	}
+
+	static void register(List<BenchmarkCase> cases) {
+		for (DispatchMode mode : DispatchMode.values()) {
+			for (int threads : THREADS) {
+				cases.add(new BenchmarkCase("DispatchBenchmarks.enqueueAndRun", () -> new Pool(mode, threads))
+						.param("mode", mode.name().toLowerCase()).param("threads", threads).batch(BATCH));
+			}
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package cs455.bench;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import cs455.message.FrameHeader;
+import cs455.message.HashMessage;
+import cs455.message.Protocol;
+import cs455.scaling.server.ReplyBuilder;
+import cs455.util.BufferPool;
+
+// The server's read path without the socket: decode the next request frame from a buffer of bytes as
+// they came off the wire and move its payload to where it will be hashed. pooledDirect is what
+// Connection does today; heapPerMessage and directPerMessage allocate instead of pooling, and
+// originalByteLoop is the fixed 8 KB heap buffer copied a byte at a time that the server started with.
+// replyBuild covers the other end: hash a framed payload and build the reply.
+public class FramingBenchmarks {
+
+	private static final int[] SIZES = { 1024, HashMessage.DEFAULT_PAYLOAD_SIZE };
+	private static final int FRAMES = 64;			// Frames in the simulated wire buffer, decoded round and round
+
+	// Moves one decoded payload to its destination and returns something derived from the copy
+	private interface Sink {
+		long take(ByteBuffer payload);
+	}
+
+	static void register(List<BenchmarkCase> cases) {
+		for (int size : SIZES) {
+			final int payloadSize = size;
+
+			cases.add(new BenchmarkCase("FramingBenchmarks.pooledDirect", () -> {
+				BufferPool bufferPool = new BufferPool(HashMessage.DEFAULT_PAYLOAD_SIZE, 64, 16);
+				return decoder(payloadSize, payload -> {
+					ByteBuffer buffer = bufferPool.acquire();
+					buffer.put(payload).flip();
+					long result = buffer.get(0);
+					bufferPool.release(buffer);
+					return result;
+				});
+			}).param("size", size));
+
+			cases.add(new BenchmarkCase("FramingBenchmarks.heapPerMessage", () -> decoder(payloadSize, payload -> {
+				ByteBuffer buffer = ByteBuffer.allocate(payload.remaining());
+				buffer.put(payload).flip();
+				return buffer.get(0);
+			})).param("size", size));
+
+			cases.add(new BenchmarkCase("FramingBenchmarks.directPerMessage", () -> decoder(payloadSize, payload -> {
+				ByteBuffer buffer = ByteBuffer.allocateDirect(payload.remaining());
+				buffer.put(payload).flip();
+				return buffer.get(0);
+			})).param("size", size));
+
+			cases.add(new BenchmarkCase("FramingBenchmarks.originalByteLoop", () -> decoder(payloadSize, payload -> {
+				ByteBuffer buffer = ByteBuffer.allocate(HashMessage.DEFAULT_PAYLOAD_SIZE);
+				buffer.put(payload).flip();
+				byte[] data = new byte[HashMessage.DEFAULT_PAYLOAD_SIZE];
+				for (int i = 0; i < buffer.limit(); i++)
+					data[i] = buffer.get();
+				return data[0];
+			})).param("size", size));
+
+			cases.add(new BenchmarkCase("FramingBenchmarks.replyBuild", () -> {
+				ByteBuffer payload = ByteBuffer.allocateDirect(payloadSize);
+				payload.put(HashingBenchmarks.payload(payloadSize)).flip();
+				return ops -> {
+					long result = 0;
+					for (int i = 0; i < ops; i++)
+						result += ReplyBuilder.build(null, null, Protocol.ALGORITHM_SHA1, i, payload.duplicate()).remaining();
+					return result;
+				};
+			}).param("size", size));
+		}
+	}
+
+	// A workload that decodes frame after frame from a heap buffer holding FRAMES framed requests
+	private static Workload decoder(int payloadSize, Sink sink) {
+		ByteBuffer wire = ByteBuffer.allocate(FRAMES * (Protocol.REQUEST_HEADER_LENGTH + payloadSize));
+		byte[] payload = HashingBenchmarks.payload(payloadSize);
+		for (int i = 0; i < FRAMES; i++) {
+			Protocol.writeRequestHeader(wire, Protocol.ALGORITHM_SHA1, i, payloadSize);
+			wire.put(payload);
+		}
+		wire.flip();
+		FrameHeader header = new FrameHeader();
+		ByteBuffer view = wire.duplicate();
+		return ops -> {
+			long result = 0;
+			for (int i = 0; i < ops; i++) {
+				if (!wire.hasRemaining())
+					wire.rewind();
+				header.decodeRequest(wire, Protocol.DEFAULT_MAX_PAYLOAD);
+				int start = wire.position();
+				int end = start + header.getPayloadLength();
+				view.limit(end).position(start);
+				result += sink.take(view);
+				wire.position(end);
+			}
+			return result;
+		};
+	}
+}
@@ -0,0 +1,163 @@
+package cs455.bench;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import cs455.message.Protocol;
+import cs455.scaling.server.DigestCache;
+import cs455.util.DigestAlgorithm;
+import cs455.util.DigestAlgorithms;
+import cs455.util.HashComputer;
+import cs455.util.ParallelHashing;
+import cs455.util.TreeDigest;
+
+// Digest throughput over the payload sizes clients actually send. originalSha1FromBytes is the
+// digest-per-call, BigInteger and String.format path HashComputer started out with, kept here so the
+// gain from the current code stays measurable. digest runs each registered DigestAlgorithm on the
+// server's direct buffers, and digestCacheHit shows what a repeated payload costs when the server's
+// digest cache answers it.
+public class HashingBenchmarks {
+
+	private static final int[] SIZES = { 1024, 8192, 65536 };
+	private static final int LARGE_SIZE = 16 << 20;
+
+	static void register(List<BenchmarkCase> cases) {
+		for (int size : SIZES) {
+			final int payloadSize = size;
+			cases.add(new BenchmarkCase("HashingBenchmarks.originalSha1FromBytes", () -> {
+				byte[] payload = payload(payloadSize);
+				return ops -> {
+					long result = 0;
+					for (int i = 0; i < ops; i++) {
+						MessageDigest digest = MessageDigest.getInstance("SHA1");
+						BigInteger hashInt = new BigInteger(1, digest.digest(payload));
+						result += String.format("%40s", hashInt.toString(16)).replaceAll(" ", "0").hashCode();
+					}
+					return result;
+				};
+			}).param("size", size));
+
+			cases.add(new BenchmarkCase("HashingBenchmarks.sha1FromBytes", () -> {
+				byte[] payload = payload(payloadSize);
+				HashComputer hashComputer = new HashComputer();
+				return ops -> {
+					long result = 0;
+					for (int i = 0; i < ops; i++)
+						result += hashComputer.SHA1FromBytes(payload).hashCode();
+					return result;
+				};
+			}).param("size", size));
+
+			cases.add(new BenchmarkCase("HashingBenchmarks.sha1Hex", () -> {
+				byte[] payload = payload(payloadSize);
+				byte[] out = new byte[HashComputer.SHA1_HEX_LENGTH];
+				HashComputer hashComputer = new HashComputer();
+				return ops -> {
+					long result = 0;
+					for (int i = 0; i < ops; i++) {
+						hashComputer.SHA1Hex(payload, out, 0);
+						result += out[0];
+					}
+					return result;
+				};
+			}).param("size", size));
+
+			cases.add(new BenchmarkCase("HashingBenchmarks.sha1Raw", () -> {
+				byte[] payload = payload(payloadSize);
+				byte[] out = new byte[HashComputer.SHA1_LENGTH];
+				HashComputer hashComputer = new HashComputer();
+				return ops -> {
+					long result = 0;
+					for (int i = 0; i < ops; i++) {
+						hashComputer.SHA1(payload, out, 0);
+						result += out[0];
+					}
+					return result;
+				};
+			}).param("size", size));
+
+			// The server's path: payload sits in a pooled direct buffer
+			cases.add(new BenchmarkCase("HashingBenchmarks.sha1Direct", () -> {
+				ByteBuffer payload = ByteBuffer.allocateDirect(payloadSize);
+				payload.put(payload(payloadSize)).flip();
+				byte[] out = new byte[HashComputer.SHA1_LENGTH];
+				HashComputer hashComputer = new HashComputer();
+				return ops -> {
+					long result = 0;
+					for (int i = 0; i < ops; i++) {
+						hashComputer.SHA1(payload.duplicate(), out, 0);
+						result += out[0];
+					}
+					return result;
+				};
+			}).param("size", size));
+
+			// Every registered algorithm through the same interface the server dispatches on
+			for (DigestAlgorithm algorithm : DigestAlgorithms.all()) {
+				cases.add(new BenchmarkCase("HashingBenchmarks.digest", () -> {
+					ByteBuffer payload = ByteBuffer.allocateDirect(payloadSize);
+					payload.put(payload(payloadSize)).flip();
+					byte[] out = new byte[algorithm.getLength()];
+					return ops -> {
+						long result = 0;
+						for (int i = 0; i < ops; i++) {
+							algorithm.digest(payload.duplicate(), out, 0);
+							result += out[0];
+						}
+						return result;
+					};
+				}).param("algorithm", algorithm.getName()).param("size", size));
+			}
+
+			// A repeated payload answered from the digest cache: fingerprint plus full comparison
+			cases.add(new BenchmarkCase("HashingBenchmarks.digestCacheHit", () -> {
+				ByteBuffer payload = ByteBuffer.allocateDirect(payloadSize);
+				payload.put(payload(payloadSize)).flip();
+				byte[] out = new byte[HashComputer.SHA1_LENGTH];
+				new HashComputer().SHA1(payload.duplicate(), out, 0);
+				DigestCache cache = new DigestCache(DigestCache.EvictionPolicy.CLOCK, 64, payloadSize);
+				cache.store(Protocol.ALGORITHM_SHA1, payload, out, 0, out.length);
+				return ops -> {
+					long result = 0;
+					for (int i = 0; i < ops; i++) {
+						if (cache.lookup(Protocol.ALGORITHM_SHA1, payload, out, 0))
+							result += out[0];
+					}
+					return result;
+				};
+			}).param("size", size));
+		}
+		registerLarge(cases);
+	}
+
+	// One large payload through a tree digest, chunk by chunk on the calling thread or as fork-join tasks
+	private static void registerLarge(List<BenchmarkCase> cases) {
+		for (String mode : new String[] { "sequential", "parallel" }) {
+			cases.add(new BenchmarkCase("HashingBenchmarks.treeDigest", () -> {
+				ParallelHashing parallel = mode.equals("parallel") ? new ParallelHashing(ForkJoinPool.commonPool(), TreeDigest.CHUNK_SIZE) : null;
+				ByteBuffer payload = ByteBuffer.allocate(LARGE_SIZE);
+				payload.put(payload(LARGE_SIZE)).flip();
+				byte[] out = new byte[DigestAlgorithms.SHA256_TREE.getLength()];
+				return ops -> {
+					long result = 0;
+					for (int i = 0; i < ops; i++) {
+						DigestAlgorithms.SHA256_TREE.digest(payload.duplicate(), out, 0, parallel);
+						result += out[0];
+					}
+					return result;
+				};
+			}).param("mode", mode).param("size", LARGE_SIZE));
+		}
+	}
+
+	// Fixed seed so every run hashes the same bytes
+	static byte[] payload(int size) {
+		byte[] payload = new byte[size];
+		new Random(455).nextBytes(payload);
+		return payload;
+	}
+}
@@ -0,0 +1,64 @@
+package cs455.bench;
+
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+
+import cs455.message.HashMessage;
+
+// Payload generation on the client side. HashMessage fills its payload from a new java.util.Random on
+// every call; the alternatives reuse one buffer and fill it from a thread-confined generator.
+public class MessageBenchmarks {
+
+	private static final int[] SIZES = { 1024, HashMessage.DEFAULT_PAYLOAD_SIZE };
+
+	static void register(List<BenchmarkCase> cases) {
+		for (int size : SIZES) {
+			final int payloadSize = size;
+
+			cases.add(new BenchmarkCase("MessageBenchmarks.newHashMessage", () -> ops -> {
+				long result = 0;
+				for (int i = 0; i < ops; i++)
+					result += new HashMessage(payloadSize).getPayload()[0];
+				return result;
+			}).param("size", size));
+
+			cases.add(new BenchmarkCase("MessageBenchmarks.generateNewPayload", () -> {
+				HashMessage message = new HashMessage(payloadSize);
+				return ops -> {
+					long result = 0;
+					for (int i = 0; i < ops; i++) {
+						message.generateNewPayload();
+						result += message.getPayload()[0];
+					}
+					return result;
+				};
+			}).param("size", size));
+
+			cases.add(new BenchmarkCase("MessageBenchmarks.threadLocalRandom", () -> {
+				byte[] payload = new byte[payloadSize];
+				return ops -> {
+					long result = 0;
+					for (int i = 0; i < ops; i++) {
+						ThreadLocalRandom.current().nextBytes(payload);
+						result += payload[0];
+					}
+					return result;
+				};
+			}).param("size", size));
+
+			cases.add(new BenchmarkCase("MessageBenchmarks.splittableRandom", () -> {
+				byte[] payload = new byte[payloadSize];
+				SplittableRandom random = new SplittableRandom(455);
+				return ops -> {
+					long result = 0;
+					for (int i = 0; i < ops; i++) {
+						random.nextBytes(payload);
+						result += payload[0];
+					}
+					return result;
+				};
+			}).param("size", size));
+		}
+	}
+}
@@ -0,0 +1,279 @@
+package cs455.bench;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Locale;
+
+import cs455.scaling.client.LoadGenerator;
+import cs455.scaling.server.Server;
+import cs455.util.CommandLineOptions;
+import cs455.util.LatencyHistogram;
+
+// End-to-end scalability run on one machine. For every combination of thread pool size, client count,
+// per-client rate and payload size it starts a fresh Server in this process on a loopback port, drives
+// it with an in-process LoadGenerator and stops it again. Each cell reports offered load, throughput and
+// latency from intended send time; along each rate sweep the first cell that fails to keep up (replies
+// fall short of what was offered, or p99 latency passes the SLO) marks the saturation point. Any reply
+// with a wrong digest, or a connection that fails or drops, is a correctness failure and fails the run.
+public class ScalabilityBenchmark {
+
+	private final int[] threadCounts;
+	private final int[] clientCounts;
+	private final double[] rates;				// Requests per second per client
+	private final int[] payloadSizes;
+	private final String[] serverOptions;		// Passed through to every Server, e.g. --dispatch=steal
+	private final String[] generatorOptions;	// Settings shared by every cell's LoadGenerator
+	private final double keepUpFraction;		// Share of offered requests that must be answered in the window
+	private final long sloNanos;				// p99 latency above this counts as saturated
+	private final long settleMillis;			// Pause between cells so sockets from the last one can close
+	private final String reportPath;
+
+	// Figures for one cell of the matrix
+	static final class Cell {
+		final int threads;
+		final int clients;
+		final double rate;
+		final int payloadSize;
+		double offered;					// Clients times rate, what the schedule asked for
+		double sent;					// Requests due in the window that actually went out
+		double throughput;
+		LatencyHistogram.Snapshot latency;
+		LatencyHistogram.Snapshot serviceTime;
+		long verificationFailures;
+		long rejected;
+		long connectFailures;
+		long disconnects;
+		long unanswered;
+		boolean saturated;
+
+		Cell(int threads, int clients, double rate, int payloadSize) {
+			this.threads = threads;
+			this.clients = clients;
+			this.rate = rate;
+			this.payloadSize = payloadSize;
+		}
+
+		long getFailures() {
+			return verificationFailures + connectFailures + disconnects;
+		}
+
+		boolean sameSeries(Cell other) {
+			return threads == other.threads && clients == other.clients && payloadSize == other.payloadSize;
+		}
+	}
+
+	private ScalabilityBenchmark(CommandLineOptions options) {
+		this.threadCounts = intList(options, "threads", "1,2,4,8");
+		this.clientCounts = intList(options, "clients", "10,50,100");
+		this.rates = doubleList(options, "rates", "10,50,100,200");
+		this.payloadSizes = intList(options, "payload-sizes", "8192");
+		String serverOptions = options.getString("server-options", "").trim();
+		this.serverOptions = serverOptions.isEmpty() ? new String[0] : serverOptions.split("\\s+");
+		this.generatorOptions = new String[] {
+				"--ramp-up=" + options.getDouble("ramp-up", 2),
+				"--duration=" + options.getDouble("duration", 10),
+				"--drain=" + options.getDouble("drain", 3),
+				"--window=" + options.getInt("window", 1),
+				"--arrival=" + options.getString("arrival", "constant"),
+				"--algorithm=" + options.getString("algorithm", "sha1"),
+				"--selectors=" + options.getInt("selectors", Math.min(4, Runtime.getRuntime().availableProcessors())),
+				"--report=",
+				"--quiet" };
+		this.keepUpFraction = options.getDouble("keep-up", 0.95);
+		this.sloNanos = (long) (options.getDouble("slo-ms", 100) * 1000000L);
+		this.settleMillis = options.getLong("settle-ms", 500);
+		this.reportPath = options.getString("out", "scalability-report.json");
+		if (keepUpFraction <= 0 || keepUpFraction > 1 || sloNanos <= 0)
+			throw new IllegalArgumentException("--keep-up must be in (0, 1] and --slo-ms positive");
+	}
+
+	public static void main(String[] args) throws IOException {
+		ScalabilityBenchmark benchmark = null;
+		try {
+			benchmark = new ScalabilityBenchmark(new CommandLineOptions(args, 0));
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			System.out.println(usage());
+			System.exit(1);
+		}
+		ArrayList<Cell> cells = benchmark.run();
+		benchmark.writeReport(cells);
+		long failures = 0;
+		for (Cell cell : cells)
+			failures += cell.getFailures();
+		if (failures > 0) {
+			System.out.println("FAILED: " + failures + " wrong digests, failed connects or dropped connections");
+			System.exit(1);
+		}
+		// Server and generator threads have all been stopped, but leave nothing to chance
+		System.exit(0);
+	}
+
+	private ArrayList<Cell> run() throws IOException {
+		int total = threadCounts.length * clientCounts.length * rates.length * payloadSizes.length;
+		System.out.println("Running " + total + " cells over loopback.  Server options: " + (serverOptions.length == 0 ? "defaults" : String.join(" ", serverOptions)));
+		System.out.println(String.format(Locale.ROOT, "%7s %7s %9s %8s %12s %12s %10s %10s %10s %9s  %s", "threads", "clients", "rate", "payload", "offered/s", "replies/s", "p50 ms", "p99 ms", "max ms", "failures", ""));
+		ArrayList<Cell> cells = new ArrayList<Cell>();
+		for (int threads : threadCounts) {
+			for (int payloadSize : payloadSizes) {
+				for (int clients : clientCounts) {
+					for (double rate : rates) {
+						Cell cell = measure(new Cell(threads, clients, rate, payloadSize));
+						cells.add(cell);
+						System.out.println(String.format(Locale.ROOT, "%7d %7d %9.1f %8d %12.1f %12.1f %10.2f %10.2f %10.2f %9d  %s", threads, clients, rate, payloadSize, cell.offered, cell.throughput,
+								cell.latency.getValueAtPercentile(0.50) / 1e6, cell.latency.getValueAtPercentile(0.99) / 1e6, cell.latency.getMax() / 1e6, cell.getFailures(),
+								cell.saturated ? "SATURATED" : ""));
+					}
+				}
+			}
+		}
+		return cells;
+	}
+
+	private Cell measure(Cell cell) throws IOException {
+		String[] serverArgs = new String[serverOptions.length + 1];
+		System.arraycopy(serverOptions, 0, serverArgs, 0, serverOptions.length);
+		serverArgs[serverOptions.length] = "--quiet";
+		Server server = new Server(0, cell.threads, new CommandLineOptions(serverArgs, 0));
+		server.start();
+		try {
+			String[] loadArgs = new String[generatorOptions.length + 3];
+			loadArgs[0] = "--connections=" + cell.clients;
+			loadArgs[1] = "--rate=" + cell.rate;
+			loadArgs[2] = "--payload-size=" + cell.payloadSize;
+			System.arraycopy(generatorOptions, 0, loadArgs, 3, generatorOptions.length);
+			LoadGenerator generator = new LoadGenerator("127.0.0.1", server.getPort(), new CommandLineOptions(loadArgs, 0));
+			generator.run();
+
+			cell.offered = cell.clients * cell.rate;
+			cell.sent = generator.getOfferedRate();
+			cell.throughput = generator.getThroughput();
+			cell.latency = generator.getLatency();
+			cell.serviceTime = generator.getServiceTime();
+			cell.verificationFailures = generator.getVerificationFailures();
+			cell.rejected = generator.getRejected();
+			cell.connectFailures = generator.getConnectFailures();
+			cell.disconnects = generator.getDisconnects();
+			cell.unanswered = generator.getUnanswered();
+			cell.saturated = cell.throughput < keepUpFraction * cell.offered || cell.latency.getValueAtPercentile(0.99) > sloNanos;
+		} finally {
+			server.stop();
+		}
+		try {
+			Thread.sleep(settleMillis);
+		} catch (InterruptedException e) {
+			System.out.println(e);
+		}
+		return cell;
+	}
+
+	private void writeReport(ArrayList<Cell> cells) throws IOException {
+		StringBuilder json = new StringBuilder();
+		json.append("{\n");
+		json.append("  \"config\": {\"server_options\": \"").append(String.join(" ", serverOptions)).append("\", \"generator_options\": \"").append(String.join(" ", generatorOptions))
+				.append("\", \"keep_up\": ").append(keepUpFraction).append(", \"slo_ms\": ").append(sloNanos / 1e6).append("},\n");
+		json.append("  \"cells\": [\n");
+		for (int i = 0; i < cells.size(); i++) {
+			Cell cell = cells.get(i);
+			json.append("    {\"threads\": ").append(cell.threads).append(", \"clients\": ").append(cell.clients).append(", \"rate_per_client\": ").append(cell.rate)
+					.append(", \"payload_size\": ").append(cell.payloadSize).append(", \"offered_msgs_per_s\": ").append(format(cell.offered)).append(", \"sent_msgs_per_s\": ").append(format(cell.sent))
+					.append(", \"throughput_msgs_per_s\": ").append(format(cell.throughput)).append(",\n      ");
+			appendLatency(json, "latency_us", cell.latency);
+			json.append(", ");
+			appendLatency(json, "service_time_us", cell.serviceTime);
+			json.append(",\n      \"verification_failures\": ").append(cell.verificationFailures).append(", \"rejected\": ").append(cell.rejected)
+					.append(", \"connect_failures\": ").append(cell.connectFailures).append(", \"disconnects\": ").append(cell.disconnects)
+					.append(", \"unanswered\": ").append(cell.unanswered).append(", \"saturated\": ").append(cell.saturated)
+					.append(i == cells.size() - 1 ? "}\n" : "},\n");
+		}
+		json.append("  ],\n");
+
+		// One entry per rate sweep: the best throughput it sustained and the offered load where it gave out
+		System.out.println();
+		System.out.println("Saturation points:");
+		json.append("  \"saturation\": [\n");
+		ArrayList<Cell> seriesStarts = new ArrayList<Cell>();
+		for (Cell cell : cells) {
+			if (seriesStarts.isEmpty() || !seriesStarts.get(seriesStarts.size() - 1).sameSeries(cell))
+				seriesStarts.add(cell);
+		}
+		for (int s = 0; s < seriesStarts.size(); s++) {
+			Cell first = seriesStarts.get(s);
+			Cell bestSustained = null;
+			Cell saturatedAt = null;
+			for (Cell cell : cells) {
+				if (!cell.sameSeries(first))
+					continue;
+				if (!cell.saturated && (bestSustained == null || cell.throughput > bestSustained.throughput))
+					bestSustained = cell;
+				if (cell.saturated && saturatedAt == null)
+					saturatedAt = cell;
+			}
+			json.append("    {\"threads\": ").append(first.threads).append(", \"clients\": ").append(first.clients).append(", \"payload_size\": ").append(first.payloadSize)
+					.append(", \"max_sustained_msgs_per_s\": ").append(bestSustained == null ? "null" : format(bestSustained.throughput))
+					.append(", \"saturated_at_offered_msgs_per_s\": ").append(saturatedAt == null ? "null" : format(saturatedAt.offered))
+					.append(s == seriesStarts.size() - 1 ? "}\n" : "},\n");
+			System.out.println(String.format(Locale.ROOT, "  threads %d, clients %d, payload %d: sustained %s msgs/s, %s", first.threads, first.clients, first.payloadSize,
+					bestSustained == null ? "nothing" : format(bestSustained.throughput),
+					saturatedAt == null ? "not saturated within the rates tried" : "saturated at " + format(saturatedAt.offered) + " msgs/s offered"));
+		}
+		json.append("  ]\n");
+		json.append("}\n");
+
+		try (PrintWriter out = new PrintWriter(new FileWriter(reportPath))) {
+			out.print(json);
+		}
+		System.out.println("Report written to " + reportPath);
+	}
+
+	private static void appendLatency(StringBuilder json, String name, LatencyHistogram.Snapshot measured) {
+		json.append('"').append(name).append("\": {\"count\": ").append(measured.getCount()).append(", \"mean\": ").append(format(measured.getMean() / 1000.0));
+		double[] percentiles = { 0.50, 0.90, 0.99, 0.999 };
+		String[] names = { "p50", "p90", "p99", "p999" };
+		for (int i = 0; i < percentiles.length; i++)
+			json.append(", \"").append(names[i]).append("\": ").append(format(measured.getValueAtPercentile(percentiles[i]) / 1000.0));
+		json.append(", \"max\": ").append(format(measured.getMax() / 1000.0)).append("}");
+	}
+
+	private static String format(double value) {
+		return String.format(Locale.ROOT, "%.1f", value);
+	}
+
+	private static int[] intList(CommandLineOptions options, String name, String defaultValue) {
+		String[] items = options.getString(name, defaultValue).split(",");
+		int[] values = new int[items.length];
+		try {
+			for (int i = 0; i < items.length; i++) {
+				values[i] = Integer.parseInt(items[i].trim());
+				if (values[i] < 1)
+					throw new IllegalArgumentException("--" + name + " values must be at least 1");
+			}
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("--" + name + " expects a comma separated list of integers");
+		}
+		return values;
+	}
+
+	private static double[] doubleList(CommandLineOptions options, String name, String defaultValue) {
+		String[] items = options.getString(name, defaultValue).split(",");
+		double[] values = new double[items.length];
+		try {
+			for (int i = 0; i < items.length; i++) {
+				values[i] = Double.parseDouble(items[i].trim());
+				if (values[i] <= 0)
+					throw new IllegalArgumentException("--" + name + " values must be positive");
+			}
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("--" + name + " expects a comma separated list of numbers");
+		}
+		return values;
+	}
+
+	private static String usage() {
+		return "Usage:  ScalabilityBenchmark [--threads=<n,n,...>] [--clients=<n,n,...>] [--rates=<per-client-per-second,...>] [--payload-sizes=<bytes,...>] [--duration=<seconds>] [--ramp-up=<seconds>] "
+				+ "[--drain=<seconds>] [--window=<requests-in-flight>] [--arrival=constant|poisson|burst] [--algorithm=<name>[,<name>...]] [--selectors=<n>] [--server-options=\"<server flags>\"] [--keep-up=<fraction>] [--slo-ms=<p99>] "
+				+ "[--settle-ms=<pause>] [--out=<file>]";
+	}
+}
@@ -0,0 +1,8 @@
+package cs455.bench;
+
+// The code under measurement. Performs ops operations and returns something derived from their results,
+// which the harness feeds to a Blackhole so the JIT cannot drop the work as dead code.
+public interface Workload {
+	
+	long run(int ops) throws Exception;
+}
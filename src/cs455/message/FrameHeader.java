@@ -0,0 +1,54 @@
+package cs455.message;
+
+import java.nio.ByteBuffer;
+
+import cs455.message.Protocol.ProtocolException;
+
+// Decoded header of a request or reply frame. Instances are reused from frame to frame.
+public class FrameHeader {
+	
+	private byte algorithm;
+	private int requestID;
+	private int payloadLength;		// Requests only
+	private byte status;			// Replies only
+	private int digestLength;		// Replies only
+	
+	// Decode a request header from the next REQUEST_HEADER_LENGTH bytes of in
+	public void decodeRequest(ByteBuffer in, int maxPayload) throws ProtocolException {
+		Protocol.checkPreamble(in);
+		algorithm = in.get();
+		requestID = in.getInt();
+		payloadLength = in.getInt();
+		if (payloadLength < 0 || payloadLength > maxPayload)
+			throw new ProtocolException("Payload length out of range: " + payloadLength);
+	}
+	
+	// Decode a reply header from the next REPLY_HEADER_LENGTH bytes of in
+	public void decodeReply(ByteBuffer in) throws ProtocolException {
+		Protocol.checkPreamble(in);
+		algorithm = in.get();
+		requestID = in.getInt();
+		status = in.get();
+		digestLength = in.get() & 0xff;
+	}
+	
+	public byte getAlgorithm() {
+		return algorithm;
+	}
+	
+	public int getRequestID() {
+		return requestID;
+	}
+	
+	public int getPayloadLength() {
+		return payloadLength;
+	}
+	
+	public byte getStatus() {
+		return status;
+	}
+	
+	public int getDigestLength() {
+		return digestLength;
+	}
+}
@@ -5,11 +5,17 @@ import java.util.Random;
 // Hash message object produced by Clients 
 public class HashMessage {
 	
+	public static final int DEFAULT_PAYLOAD_SIZE = 8192;
+	
 	private byte[] payload;
 	private int payloadSizeBytes;
 	
 	public HashMessage() {
-		payloadSizeBytes = 8192;
+		this(DEFAULT_PAYLOAD_SIZE);
+	}
+	
+	public HashMessage(int payloadSizeBytes) {
+		this.payloadSizeBytes = payloadSizeBytes;
 		payload = new byte[payloadSizeBytes];
 		generateNewPayload();
 	}
@@ -21,6 +27,10 @@ public class HashMessage {
 		return copyOfPayload;
 	}
 	
+	public int getPayloadSize() {
+		return payloadSizeBytes;
+	}
+	
 	// Generate new random payload
 	public void generateNewPayload() {
 		new Random().nextBytes(payload);
@@ -0,0 +1,67 @@
+package cs455.message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Wire format shared by the server and client. All fields are big endian.
+//
+// Request:  magic(2) version(1) algorithm(1) request-id(4) payload-length(4) | payload
+// Reply:    magic(2) version(1) algorithm(1) request-id(4) status(1) digest-length(1) | digest
+//
+// The magic number and version are checked on every frame, so a peer that loses its place in the
+// stream is disconnected instead of having arbitrary bytes hashed as a message.
+public class Protocol {
+	
+	public static final short MAGIC = (short) 0xC455;
+	public static final byte VERSION = 1;
+	
+	public static final int REQUEST_HEADER_LENGTH = 12;
+	public static final int REPLY_HEADER_LENGTH = 10;
+	public static final int DEFAULT_MAX_PAYLOAD = 16 * 1024 * 1024;
+	
+	public static final byte ALGORITHM_SHA1 = 1;			// Ids of the built-in DigestAlgorithms
+	public static final byte ALGORITHM_SHA256 = 2;
+	public static final byte ALGORITHM_CRC32C = 3;
+	public static final byte ALGORITHM_XXH64 = 4;
+	public static final byte ALGORITHM_SHA1_TREE = 5;
+	public static final byte ALGORITHM_SHA256_TREE = 6;
+	
+	public static final byte STATUS_OK = 0;
+	public static final byte STATUS_BUSY = 1;				// Server shed the request, nothing was hashed
+	public static final byte STATUS_BAD_REQUEST = 2;		// Unsupported algorithm, nothing was hashed
+	
+	// Thrown when a peer sends something that is not a frame of this protocol
+	public static class ProtocolException extends IOException {
+		private static final long serialVersionUID = 1L;
+		
+		public ProtocolException(String message) {
+			super(message);
+		}
+	}
+	
+	public static void writeRequestHeader(ByteBuffer out, byte algorithm, int requestID, int payloadLength) {
+		out.putShort(MAGIC);
+		out.put(VERSION);
+		out.put(algorithm);
+		out.putInt(requestID);
+		out.putInt(payloadLength);
+	}
+	
+	public static void writeReplyHeader(ByteBuffer out, byte algorithm, int requestID, byte status, int digestLength) {
+		out.putShort(MAGIC);
+		out.put(VERSION);
+		out.put(algorithm);
+		out.putInt(requestID);
+		out.put(status);
+		out.put((byte) digestLength);
+	}
+	
+	static void checkPreamble(ByteBuffer in) throws ProtocolException {
+		short magic = in.getShort();
+		if (magic != MAGIC)
+			throw new ProtocolException("Bad magic number: " + Integer.toHexString(magic & 0xffff));
+		byte version = in.get();
+		if (version != VERSION)
+			throw new ProtocolException("Unsupported protocol version: " + version);
+	}
+}
@@ -0,0 +1,62 @@
+package cs455.scaling.client;
+
+import java.util.Random;
+
+// Timetable of intended send times for an open-loop sender. Every send time is fixed from the start
+// time and the target rate alone, never from when earlier replies came back, so a stalled server leaves
+// the sender with a backlog of late requests rather than quietly lowering the offered load. Measuring
+// latency from these intended times counts the wait to go out as part of the request's latency, which
+// keeps a stall from being coordinated out of the results.
+public class ArrivalSchedule {
+
+	public enum Pattern {
+		CONSTANT,	// Evenly spaced
+		POISSON,	// Exponentially distributed gaps with the same mean
+		BURST;		// Groups of burst-size requests at once, spaced so the average rate is unchanged
+
+		public static Pattern parse(String name) {
+			for (Pattern pattern : values()) {
+				if (pattern.name().equalsIgnoreCase(name))
+					return pattern;
+			}
+			throw new IllegalArgumentException("Unknown arrival pattern: " + name);
+		}
+	}
+
+	private final Pattern pattern;
+	private final double intervalNanos;		// Mean gap between requests
+	private final int burstSize;
+	private final long start;				// First intended send time, in System.nanoTime()
+	private final Random random;
+	private long scheduled;					// Requests handed out so far
+	private double poissonOffset;			// Nanoseconds from start to the last Poisson arrival
+
+	public ArrivalSchedule(Pattern pattern, double ratePerSecond, int burstSize, long start, Random random) {
+		if (ratePerSecond <= 0)
+			throw new IllegalArgumentException("Rate must be positive");
+		if (burstSize < 1)
+			throw new IllegalArgumentException("Burst size must be at least 1");
+		this.pattern = pattern;
+		this.intervalNanos = 1e9 / ratePerSecond;
+		this.burstSize = burstSize;
+		this.start = start;
+		this.random = random;
+		this.scheduled = 0;
+		this.poissonOffset = 0;
+	}
+
+	// Intended send time of the next request. Times are computed from the start rather than added up,
+	// so rounding never makes the schedule drift.
+	public long next() {
+		long n = scheduled++;
+		switch (pattern) {
+			case CONSTANT:
+				return start + (long) (n * intervalNanos);
+			case BURST:
+				return start + (long) ((n / burstSize) * burstSize * intervalNanos);
+			default:
+				poissonOffset += -Math.log(1.0 - random.nextDouble()) * intervalNanos;
+				return start + (long) poissonOffset;
+		}
+	}
+}
@@ -1,26 +1,32 @@
 package cs455.scaling.client;
 
 import java.io.IOException;
-import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
 
+import cs455.message.HashMessage;
 import cs455.scaling.Node;
-import cs455.util.HashComputer;
+import cs455.util.CommandLineOptions;
+import cs455.util.DigestAlgorithm;
+import cs455.util.DigestAlgorithms;
 
 public class Client implements Node {
 
 	private String serverHost;						// Server IP address
 	private int serverPort;							// Server port number
 	private int messageRate;						// Number of message to send per second
+	private int payloadSize;						// Bytes of random payload in each message
 	
-	private HashComputer hashComputer;				// Takes a byte array as input and returns an integer hash value using the SHA1 algorithm
-	private LinkedList<String> hashCodes;			// A queue of hash codes for messages sent by the client
+	private DigestAlgorithm algorithm;				// Digest the server is asked to compute
+	private int windowSize;							// Number of requests that may be in flight at once
+	private ArrivalSchedule.Pattern arrivalPattern;	// Open-loop spacing of intended send times
+	private int burstSize;							// Requests per burst for the burst pattern
+	private ConcurrentHashMap<Integer, ClientComms.PendingRequest> hashCodes;	// Requests sent by the client and not yet answered, by request id
 	
 	private ClientComms comm;						// Client communications thread
 	private Thread commThread;
 	
 	private Client () {
-		hashComputer = new HashComputer();
-		hashCodes = new LinkedList<String>();
+		hashCodes = new ConcurrentHashMap<Integer, ClientComms.PendingRequest>();
 	}
 	
 	public static void main(String[] args) throws IOException {
@@ -28,29 +34,49 @@ public class Client implements Node {
 		Client client = new Client();
 		
 		// Parse command arguments
-		if (args.length == 3) {
-			client.serverHost = args[0];
-			client.serverPort = Integer.parseInt(args[1]);
-			client.messageRate = Integer.parseInt(args[2]);
+		if (args.length >= 3) {
+			try {
+				client.serverHost = args[0];
+				client.serverPort = Integer.parseInt(args[1]);
+				client.messageRate = Integer.parseInt(args[2]);
+				CommandLineOptions options = new CommandLineOptions(args, 3);
+				client.payloadSize = options.getInt("payload-size", HashMessage.DEFAULT_PAYLOAD_SIZE);
+				client.windowSize = options.getInt("window", 1);
+				if (client.windowSize < 1)
+					throw new IllegalArgumentException("--window must be at least 1");
+				client.arrivalPattern = ArrivalSchedule.Pattern.parse(options.getString("arrival", "constant"));
+				client.burstSize = options.getInt("burst-size", 10);
+				client.algorithm = DigestAlgorithms.parse(options.getString("algorithm", "sha1"));
+				if (client.messageRate < 1 || client.burstSize < 1)
+					throw new IllegalArgumentException("Message rate and --burst-size must be at least 1");
+			} catch (IllegalArgumentException e) {
+				System.out.println(e.getMessage());
+				System.out.println(usage());
+				System.exit(0);
+			}
 		}
 		else {
 			System.out.println(usage());
 			System.exit(0);
 		}
 		
-		System.out.println("New client initialized.  Server host: " + client.serverHost + " \tServer Port: " + client.serverPort + "\tMessageRate: " + client.messageRate + " per second");
+		System.out.println("New client initialized.  Server host: " + client.serverHost + " \tServer Port: " + client.serverPort + "\tMessageRate: " + client.messageRate + " per second\tPayload: " + client.payloadSize + " bytes\tWindow: " + client.windowSize + "\tArrival: " + client.arrivalPattern + "\tAlgorithm: " + client.algorithm.getName());
 	
 		// Create a ClientComms object and begin communicating with the server
-		client.comm = new ClientComms(client.serverHost, client.serverPort, client.messageRate, client.hashComputer, client.hashCodes, debug);
+		client.comm = new ClientComms(client.serverHost, client.serverPort, client.messageRate, client.payloadSize, client.windowSize, client.arrivalPattern, client.burstSize, client.algorithm, client.hashCodes, debug);
 		client.commThread = new Thread(client.comm);
 		client.commThread.start();
 		
+		// Print the whole run's latency when the client is stopped
+		ClientComms comm = client.comm;
+		Runtime.getRuntime().addShutdownHook(new Thread(comm::printLatencyTotals, "latency-dump"));
+		
 		/*
 		while (true){
 			synchronized(client.comm.statTracker){
 				if (System.nanoTime() - client.comm.statTracker.getTime() > 3000000000L){
 					if (debug) System.out.println("Hang detected: " + (System.nanoTime() - client.comm.statTracker.getTime()));
-					client.comm = new ClientComms(client.serverHost, client.serverPort, client.messageRate, client.hashComputer, client.hashCodes, debug);
+					client.comm = new ClientComms(client.serverHost, client.serverPort, client.messageRate, client.payloadSize, client.windowSize, client.arrivalPattern, client.burstSize, client.algorithm, client.hashCodes, debug);
 					client.commThread = new Thread(client.comm);
 					client.commThread.start();
 					client.comm.statTracker.setTime(System.nanoTime());
@@ -61,6 +87,6 @@ public class Client implements Node {
 	
 	// Print usage message if wrong number of arguments is given
 	public static String usage() {
-		return "Usage:  Client <server-host> <server-port> <message-rate>";
+		return "Usage:  Client <server-host> <server-port> <message-rate> [--payload-size=<bytes>] [--window=<requests-in-flight>] [--arrival=constant|poisson|burst] [--burst-size=<n>] [--algorithm=" + DigestAlgorithms.names() + "]";
 	}
 }
@@ -6,10 +6,20 @@ import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.sql.Timestamp;
 import java.util.Calendar;
-import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import cs455.message.FrameHeader;
 import cs455.message.HashMessage;
+import cs455.message.Protocol;
+import cs455.util.DigestAlgorithm;
 import cs455.util.HashComputer;
+import cs455.util.LatencyHistogram;
 import cs455.util.StatTracker;
+import cs455.util.StatTracker.Stage;
 
 public class ClientComms implements Runnable {
 
@@ -17,23 +27,51 @@ public class ClientComms implements Runnable {
 	private final String serverHostname;			// Server IP address
 	private final int serverPort;					// Server port number
 	private final int messageRate;					// Number of messages to send per second
-	private final HashComputer hashComputer;		// Object that computes hash codes of byte arrays
-	private final LinkedList<String> hashCodes;		// Queue of hash codes waiting to be received from the server
-	final StatTracker statTracker;			// Accumulates statistics to be printed to console
-	private boolean shutDown;						// Shut down switch
+	private final int payloadSize;					// Bytes of random payload in each message
+	private final DigestAlgorithm algorithm;		// Digest asked of the server for every request
+	private final ArrivalSchedule.Pattern arrivalPattern;	// How intended send times are spread
+	private final int burstSize;					// Requests per burst for the BURST pattern
+	private final ConcurrentHashMap<Integer, PendingRequest> hashCodes;	// Requests waiting for a reply from the server, by request id
+	private final Semaphore window;					// Permits for requests that may be in flight at once
+	final StatTracker statTracker;			// Accumulates statistics to be printed to console; END_TO_END latency counts from the intended send time
+	private final LatencyHistogram serviceTime;		// Latency counted from the actual send instead
+	private final LongAdder busyReplies;			// Requests the server was too busy to hash
+	private volatile boolean shutDown;				// Shut down switch
 	private final boolean debug;					// Debug mode
 	
-	public ClientComms(String serverHostname, int serverPort, int messageRate, HashComputer hashComputer, LinkedList<String> hashCodes, boolean debug) throws IOException {
+	// Expected hash code of a request and when it was meant to go out and actually went out
+	static final class PendingRequest {
+		final String hash;
+		final long intendedTime;
+		long sendTime;						// Set before the request is published in hashCodes
+
+		PendingRequest(String hash, long intendedTime) {
+			this.hash = hash;
+			this.intendedTime = intendedTime;
+		}
+	}
+	
+	public ClientComms(String serverHostname, int serverPort, int messageRate, int payloadSize, int windowSize, ArrivalSchedule.Pattern arrivalPattern, int burstSize, DigestAlgorithm algorithm, ConcurrentHashMap<Integer, PendingRequest> hashCodes, boolean debug) throws IOException {
 		this.serverHostname = serverHostname;
 		this.serverPort = serverPort;
 		this.messageRate = messageRate;
+		this.payloadSize = payloadSize;
+		this.arrivalPattern = arrivalPattern;
+		this.burstSize = burstSize;
+		this.window = new Semaphore(windowSize);
 		this.shutDown = false;
-		this.hashComputer = hashComputer;
+		this.algorithm = algorithm;
 		this.hashCodes = hashCodes;
 		this.statTracker = new StatTracker();
+		this.serviceTime = new LatencyHistogram();
+		this.busyReplies = new LongAdder();
 		this.debug = debug;
 	}
 		
+	// Sends requests open-loop on the arrival schedule, keeping up to windowSize of them in flight. A request
+	// held up by a slow server or a full window goes out late rather than being skipped, and its latency
+	// still counts from when it was due. Replies are read on a separate thread and matched to their
+	// requests by id, so they may arrive in any order.
 	public void startClient() throws IOException {
 		if (debug) System.out.println("ClientComms starting the client...");
 		long start = System.nanoTime();
@@ -43,88 +81,161 @@ public class ClientComms implements Runnable {
 		socketChannel.connect(new InetSocketAddress(serverHostname, serverPort));
 		System.out.println("Client connected to server: " + socketChannel.getRemoteAddress());
 		
+		Thread receiver = new Thread(this::receiveReplies, "reply-receiver");
+		receiver.start();
+		
+		ByteBuffer header = ByteBuffer.allocate(Protocol.REQUEST_HEADER_LENGTH);
+		int nextRequestID = 0;
+		ArrivalSchedule schedule = new ArrivalSchedule(arrivalPattern, messageRate, burstSize, System.nanoTime(), new Random());
+		
 		while (!shutDown){
 			// Print client statistics every 10 seconds
 			if (System.nanoTime() - start >= (10000000000L)) {
 				Calendar calendar = Calendar.getInstance();
 				Timestamp currentTimestamp = new java.sql.Timestamp(calendar.getTime().getTime());
-				System.out.println(currentTimestamp + "\tTotal Sent Count: " + statTracker.getWriteCount() + "\tTotal Received Count: " + statTracker.getReadCount());   
+				StatTracker.Interval interval = statTracker.snapshot();
+				System.out.println(currentTimestamp + "\tSent in last interval: " + interval.writes + "\tReceived in last interval: " + interval.reads + "\tIn flight: " + hashCodes.size()
+						+ "\tBusy replies: " + busyReplies.sum() + "\tLatency p50/p99/p999/max us: " + interval.getLatency(Stage.END_TO_END) + "\tService time: " + serviceTime.intervalSnapshot());   
 				start = System.nanoTime();
-				statTracker.resetRW();
 			}
 			
-			HashMessage hashMessage = new HashMessage();
-			String sha = hashComputer.SHA1FromBytes(hashMessage.getPayload()).trim();
-			
+			// Prepare the next request ahead of its slot so that only sending happens on time
+			HashMessage hashMessage = new HashMessage(payloadSize);
+			byte[] digest = new byte[algorithm.getLength()];
+			algorithm.digest(hashMessage.getPayload(), digest, 0);
+			String expected = HashComputer.toHex(digest);
+			int requestID = nextRequestID++;
 			statTracker.incrementHashes();
+			PendingRequest request = new PendingRequest(expected, schedule.next());
+			waitUntil(request.intendedTime);
+			
+			// Wait for a free slot in the window. The request is already due, so this wait counts as latency.
+			try {
+				window.acquire();
+			} catch (InterruptedException e) {
+				System.out.println(e);
+				break;
+			}
+			if (shutDown)
+				break;
 
-			if (debug) System.out.println(" Client has new message. Hash: " + sha + " added to hash code queue.");
+			if (debug) System.out.println(" Client has new message " + requestID + ". Hash: " + expected + " added to hash code table.");
 			
-			hashCodes.add(sha);
+			request.sendTime = System.nanoTime();
+			hashCodes.put(requestID, request);
 
-			// Load message payload into buffer
-			ByteBuffer buffer = ByteBuffer.allocate(hashMessage.getPayload().length);
-			buffer.put(hashMessage.getPayload());
-			buffer.rewind();
+			// Frame the payload behind a request header
+			header.clear();
+			Protocol.writeRequestHeader(header, algorithm.getId(), requestID, payloadSize);
+			header.flip();
+			ByteBuffer[] frame = { header, ByteBuffer.wrap(hashMessage.getPayload()) };
 			
 			// Write message to socket channel
-			int read = 0;
-			while (buffer.hasRemaining() && read != -1){
-				read = socketChannel.write(buffer);
+			while (frame[0].hasRemaining() || frame[1].hasRemaining()){
+				socketChannel.write(frame);
 			}
 
 			statTracker.incrementWrites();
-			statTracker.setTime(System.nanoTime());
-			
-			buffer.clear();
-			buffer = ByteBuffer.allocate(40);
-			
-			// Read server response
-			read = 0;
-			while (buffer.hasRemaining() && read != -1){
-				read = socketChannel.read(buffer);
-			}
-			statTracker.setTime(System.nanoTime());
-			
-			buffer.rewind();
-			
-			// Verify server response
-			String receivedSHA = new String();
-			while (buffer.hasRemaining()){
-				receivedSHA += (char) buffer.get();
+			statTracker.addBytesWritten(Protocol.REQUEST_HEADER_LENGTH + payloadSize);
+		}
+	}
+	
+	private static void waitUntil(long deadline) {
+		long remaining;
+		while ((remaining = deadline - System.nanoTime()) > 0)
+			LockSupport.parkNanos(remaining);
+	}
+	
+	// Reads replies until the server closes the connection, verifying each against its request
+	private void receiveReplies() {
+		ByteBuffer replyHeader = ByteBuffer.allocate(Protocol.REPLY_HEADER_LENGTH);
+		FrameHeader reply = new FrameHeader();
+		try {
+			while (!shutDown) {
+				if (!readFully(replyHeader))
+					break;
+				replyHeader.flip();
+				reply.decodeReply(replyHeader);
+				ByteBuffer digest = ByteBuffer.allocate(reply.getDigestLength());
+				if (!readFully(digest))
+					break;
+				statTracker.addBytesRead(Protocol.REPLY_HEADER_LENGTH + reply.getDigestLength());
+				
+				// A duplicate or stray reply frees no slot in the window
+				PendingRequest request = hashCodes.remove(reply.getRequestID());
+				if (request == null) {
+					System.out.println(" Received reply to unknown request " + reply.getRequestID());
+					continue;
+				}
+				
+				// The server shed this request without hashing it, so there is nothing to verify
+				if (reply.getStatus() == Protocol.STATUS_BUSY) {
+					busyReplies.increment();
+					if (debug) System.out.println("Server was too busy for request " + reply.getRequestID());
+					window.release();
+					continue;
+				}
+				
+				// Verify server response
+				String receivedHash = "";
+				if (reply.getStatus() == Protocol.STATUS_OK && reply.getAlgorithm() == algorithm.getId())
+					receivedHash = HashComputer.toHex(digest.array());
+				
+				boolean verified = verifyReceivedHash(request, receivedHash, System.nanoTime());
+				if (debug) System.out.println("Client received hash code for request " + reply.getRequestID() + ".\tVerified: " + verified);
+				window.release();
 			}
-			
-			boolean verified = verifyReceivedHash(receivedSHA);
-			if (debug) System.out.println("Client received hash code: " + receivedSHA.length() + " chars.\tVerified: " + verified);
-			
-			buffer = null;
-
-			// Sleep until time to send next message
-			long waitTime = (long) (1000.0/messageRate);
-			if (debug) System.out.println(" Client waiting for " + (waitTime/1000) + " seconds...");
-			try {
-				Thread.sleep(waitTime);
-			} catch (InterruptedException e) {
-				System.out.println(e);
+		} catch (IOException e) {
+			System.out.println(e);
+		}
+		// Let the sender notice and stop
+		shutDown = true;
+		window.release();
+	}
+	
+	// Fill a buffer from the server, returning false if the server closed the connection
+	private boolean readFully(ByteBuffer buffer) throws IOException {
+		buffer.clear();
+		while (buffer.hasRemaining()) {
+			if (socketChannel.read(buffer) == -1) {
+				System.out.println("Server closed the connection");
+				return false;
 			}
 		}
+		return true;
 	}
 	
-	// Compare a received hash code to the hash code which the client expected to receive
-	private boolean verifyReceivedHash(String receivedHash) {
-		String nextExpectedHash = ((String) hashCodes.removeFirst()).trim();
-		receivedHash = receivedHash.trim();
-		if (receivedHash.equals(nextExpectedHash)) {
+	// Compare a received hash code to the hash code which the client expected for that request
+	private boolean verifyReceivedHash(PendingRequest request, String receivedHash, long receivedTime) {
+		statTracker.recordLatency(Stage.END_TO_END, receivedTime - request.intendedTime);
+		serviceTime.record(receivedTime - request.sendTime);
+		String expectedHash = request.hash;
+		if (receivedHash.equals(expectedHash)) {
 			statTracker.incrementReads();
 			return true;
 		}
 		else {
-			System.out.println(" Expected hash: " + nextExpectedHash);
+			System.out.println(" Expected hash: " + expectedHash);
 			System.out.println(" Received hash: " + receivedHash);
 			return false;
 		}
 	}
 
+	// Latency over the whole run, from intended and from actual send times
+	void printLatencyTotals() {
+		LatencyHistogram.Snapshot latency = statTracker.getLatencyTotals()[Stage.END_TO_END.ordinal()];
+		LatencyHistogram.Snapshot service = serviceTime.snapshot();
+		System.out.println("Latency since startup (microseconds), " + latency.getCount() + " replies:");
+		System.out.println(String.format("  %-22s %10s %10s %10s %10s %10s %10s", "", "mean", "p50", "p90", "p99", "p999", "max"));
+		printLatencyRow("from intended send", latency);
+		printLatencyRow("from actual send", service);
+	}
+	
+	private static void printLatencyRow(String name, LatencyHistogram.Snapshot latency) {
+		System.out.println(String.format("  %-22s %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f", name, latency.getMean() / 1000.0, latency.getValueAtPercentile(0.50) / 1000.0,
+				latency.getValueAtPercentile(0.90) / 1000.0, latency.getValueAtPercentile(0.99) / 1000.0, latency.getValueAtPercentile(0.999) / 1000.0, latency.getMax() / 1000.0));
+	}
+
 	@Override
 	public void run() {
 		try {
@@ -49,9 +49,9 @@ public class ClientComms_old {
 			if (System.nanoTime() - start >= (10000000000L)) {
 				Calendar calendar = Calendar.getInstance();
 				Timestamp currentTimestamp = new java.sql.Timestamp(calendar.getTime().getTime());
-				System.out.println(currentTimestamp + "\tTotal Sent Count: " + statTracker.getWriteCount() + "\tTotal Received Count: " + statTracker.getReadCount());   
+				StatTracker.Interval interval = statTracker.snapshot();
+				System.out.println(currentTimestamp + "\tSent in last interval: " + interval.writes + "\tReceived in last interval: " + interval.reads);   
 				start = System.nanoTime();
-				statTracker.resetRW();
 			}
 			
 			HashMessage hashMessage = new HashMessage();
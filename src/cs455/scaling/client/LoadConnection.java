@@ -0,0 +1,299 @@
+package cs455.scaling.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+import cs455.message.FrameHeader;
+import cs455.message.Protocol;
+import cs455.util.DigestAlgorithm;
+import cs455.util.StatTracker.Stage;
+
+// One load generator connection. Owned by a single LoadReactor thread, so nothing here is shared.
+// Requests go out open-loop on an arrival schedule, as long as fewer than the window are unanswered;
+// replies are matched to their request by id and checked against the digest of the payload that was sent.
+public class LoadConnection {
+
+	private enum State {
+		WAITING,		// Ramp-up slot not reached yet
+		CONNECTING,
+		OPEN,
+		CLOSED
+	}
+
+	private static final int INBOUND_BUFFER_SIZE = 4096;
+
+	private final int connectionID;
+	private final LoadGenerator generator;
+	private final long connectTime;				// Ramp-up slot, in System.nanoTime()
+	private ArrivalSchedule schedule;			// Open-loop timetable, null for window-bound sending
+	private SocketChannel channel;
+	private SelectionKey key;
+	private State state;
+	private long nextSendTime;					// Intended send time of the next request
+	private int nextRequestID;
+	private int payloadCursor;
+	private final Random payloadRandom;			// --payload-pool=0: bytes of each fresh payload, seeded from --seed
+	private final HashMap<Integer, Pending> pending;	// Unanswered requests by id
+	private final ByteBuffer header;
+	private final ByteBuffer[] frame;			// { header, payload } of the request being written
+	private boolean writing;					// A request is part written and OP_WRITE is armed
+	private final ByteBuffer inbound;
+	private final FrameHeader reply;
+	private final byte[] digest;
+	private final int algorithmIndex;			// Which of the generator's algorithms this connection asks for
+	private final DigestAlgorithm algorithm;
+
+	// Expected digest and intended and actual send times of an unanswered request
+	private static final class Pending {
+		final byte[] digest;
+		final long intendedTime;
+		final long sendTime;
+
+		Pending(byte[] digest, long intendedTime, long sendTime) {
+			this.digest = digest;
+			this.intendedTime = intendedTime;
+			this.sendTime = sendTime;
+		}
+	}
+
+	public LoadConnection(int connectionID, LoadGenerator generator, long connectTime) {
+		this.connectionID = connectionID;
+		this.generator = generator;
+		this.connectTime = connectTime;
+		this.state = State.WAITING;
+		this.nextRequestID = 0;
+		this.payloadCursor = connectionID;
+		this.payloadRandom = new Random(31 * generator.seed + connectionID);
+		this.pending = new HashMap<Integer, Pending>();
+		this.header = ByteBuffer.allocate(Protocol.REQUEST_HEADER_LENGTH);
+		this.frame = new ByteBuffer[2];
+		this.inbound = ByteBuffer.allocate(INBOUND_BUFFER_SIZE);
+		this.reply = new FrameHeader();
+		this.digest = new byte[255];
+		this.algorithmIndex = connectionID % generator.algorithms.length;
+		this.algorithm = generator.algorithms[algorithmIndex];
+	}
+
+	long getConnectTime() {
+		return connectTime;
+	}
+
+	int getInFlight() {
+		return pending.size();
+	}
+
+	void connect(Selector selector) {
+		try {
+			state = State.CONNECTING;
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			if (channel.connect(new InetSocketAddress(generator.serverHost, generator.serverPort))) {
+				key = channel.register(selector, SelectionKey.OP_READ, this);
+				opened();
+			}
+			else {
+				key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+			}
+		} catch (IOException e) {
+			connectFailed(e);
+		}
+	}
+
+	private void opened() {
+		state = State.OPEN;
+		if (generator.ratePerConnection > 0) {
+			schedule = new ArrivalSchedule(generator.arrivalPattern, generator.ratePerConnection, generator.burstSize, System.nanoTime(), new Random(generator.seed + connectionID));
+			nextSendTime = schedule.next();
+		}
+		generator.statTracker.incrementConnections();
+	}
+
+	private void connectFailed(IOException e) {
+		if (generator.connectFailures.sum() == 0)
+			System.out.println("Connection " + connectionID + " failed to connect: " + e);
+		generator.connectFailures.increment();
+		close();
+	}
+
+	void handle(SelectionKey key) {
+		try {
+			if (key.isConnectable()) {
+				try {
+					channel.finishConnect();
+				} catch (IOException e) {
+					connectFailed(e);
+					return;
+				}
+				key.interestOps(SelectionKey.OP_READ);
+				opened();
+				return;
+			}
+			if (key.isReadable())
+				readReplies();
+			if (key.isValid() && key.isWritable())
+				continueWrite();
+		} catch (IOException e) {
+			broken(e);
+		}
+	}
+
+	// Send every request that is due and fits in the window. Returns when the next one will be due, or
+	// Long.MAX_VALUE if only a reply or a writable channel can let another one out. Requests held back by
+	// the window keep their intended times, so they go out back to back once it opens and their latency
+	// includes the hold-up.
+	long sendDue(long now) {
+		if (state != State.OPEN)
+			return Long.MAX_VALUE;
+		try {
+			while (!writing && pending.size() < generator.windowSize) {
+				long intended = (schedule == null) ? now : nextSendTime;
+				if (now - intended < 0 || intended - generator.sendDeadline >= 0)
+					break;
+				send(intended, now);
+				if (schedule != null)
+					nextSendTime = schedule.next();
+			}
+		} catch (IOException e) {
+			broken(e);
+			return Long.MAX_VALUE;
+		}
+		if (writing || pending.size() >= generator.windowSize || schedule == null)
+			return Long.MAX_VALUE;
+		return nextSendTime;
+	}
+
+	private void send(long intended, long now) throws IOException {
+		byte[] payload;
+		byte[] expected;
+		if (generator.payloads.length > 0) {
+			LoadGenerator.Payload next = generator.payloads[payloadCursor++ % generator.payloads.length];
+			payload = next.data;
+			expected = next.digests[algorithmIndex];
+		}
+		else {
+			payload = new byte[generator.payloadSize];
+			payloadRandom.nextBytes(payload);
+			expected = new byte[algorithm.getLength()];
+			algorithm.digest(payload, expected, 0);
+		}
+
+		int requestID = nextRequestID++;
+		pending.put(requestID, new Pending(expected, intended, now));
+		header.clear();
+		Protocol.writeRequestHeader(header, algorithm.getId(), requestID, payload.length);
+		header.flip();
+		frame[0] = header;
+		frame[1] = ByteBuffer.wrap(payload);
+
+		generator.statTracker.incrementWrites();
+		generator.statTracker.addBytesWritten(Protocol.REQUEST_HEADER_LENGTH + payload.length);
+		generator.inFlight.increment();
+		if (intended - generator.measureStart >= 0)
+			generator.measuredSent.increment();
+
+		channel.write(frame);
+		if (frame[1].hasRemaining()) {
+			writing = true;
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+	}
+
+	private void continueWrite() throws IOException {
+		channel.write(frame);
+		if (!frame[1].hasRemaining()) {
+			writing = false;
+			key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	private void readReplies() throws IOException {
+		if (channel.read(inbound) < 0) {
+			broken(null);
+			return;
+		}
+		long now = System.nanoTime();
+		inbound.flip();
+		while (inbound.remaining() >= Protocol.REPLY_HEADER_LENGTH) {
+			int frameStart = inbound.position();
+			reply.decodeReply(inbound);
+			if (inbound.remaining() < reply.getDigestLength()) {
+				inbound.position(frameStart);
+				break;
+			}
+			inbound.get(digest, 0, reply.getDigestLength());
+			onReply(now);
+		}
+		inbound.compact();
+	}
+
+	private void onReply(long now) {
+		Pending request = pending.remove(reply.getRequestID());
+		if (request == null) {
+			System.out.println("Connection " + connectionID + " received a reply to unknown request " + reply.getRequestID());
+			generator.verificationFailures.increment();
+			return;
+		}
+		long latency = now - request.intendedTime;
+		generator.inFlight.decrement();
+		generator.statTracker.incrementReads();
+		generator.statTracker.addBytesRead(Protocol.REPLY_HEADER_LENGTH + reply.getDigestLength());
+		generator.statTracker.recordLatency(Stage.END_TO_END, latency);
+		if (request.intendedTime - generator.measureStart >= 0) {
+			generator.latency.record(latency);
+			generator.serviceTime.record(now - request.sendTime);
+		}
+		if (now - generator.measureStart >= 0 && now - generator.sendDeadline < 0)
+			generator.measuredReplies.increment();
+
+		if (reply.getStatus() != Protocol.STATUS_OK) {
+			generator.rejected.increment();
+		}
+		else if (reply.getAlgorithm() != algorithm.getId() || reply.getDigestLength() != request.digest.length || !Arrays.equals(digest, 0, request.digest.length, request.digest, 0, request.digest.length)) {
+			if (generator.verificationFailures.sum() == 0)
+				System.out.println("Connection " + connectionID + " received a wrong digest for request " + reply.getRequestID());
+			generator.verificationFailures.increment();
+		}
+	}
+
+	// The server closed the connection or something failed on it
+	private void broken(IOException e) {
+		if (state == State.CLOSED)
+			return;
+		if (generator.disconnects.sum() == 0)
+			System.out.println("Connection " + connectionID + " lost: " + (e == null ? "closed by server" : e.toString()));
+		generator.disconnects.increment();
+		finish();
+	}
+
+	// Give up on whatever is still unanswered and close
+	void finish() {
+		if (state == State.OPEN)
+			generator.statTracker.decrementConnections();
+		generator.unanswered.add(pending.size());
+		generator.inFlight.add(-pending.size());
+		pending.clear();
+		close();
+	}
+
+	private void close() {
+		state = State.CLOSED;
+		if (key != null)
+			key.cancel();
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				System.out.println(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,293 @@
+package cs455.scaling.client;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+
+import cs455.message.HashMessage;
+import cs455.scaling.Node;
+import cs455.util.CommandLineOptions;
+import cs455.util.DigestAlgorithm;
+import cs455.util.DigestAlgorithms;
+import cs455.util.LatencyHistogram;
+import cs455.util.StatTracker;
+import cs455.util.StatTracker.Stage;
+
+// Drives many client connections from one process. Connections are spread over a few selector threads
+// (LoadReactor), opened gradually over the ramp-up and then driven open-loop at a fixed per-connection
+// rate for the test duration, with latency counted from each request's intended send time. Every reply
+// is checked against the digest of the payload it answers, and the run ends with a JSON report of
+// throughput, latency and failures measured over the steady-state window.
+public class LoadGenerator implements Node {
+
+	final String serverHost;
+	final int serverPort;
+	final int connectionCount;
+	final double ratePerConnection;			// Requests per second per connection, 0 sends whenever the window allows
+	final ArrivalSchedule.Pattern arrivalPattern;
+	final int burstSize;
+	final long seed;						// Seeds the payloads and each connection's Poisson arrivals, so runs can be repeated
+	final long rampUpNanos;
+	final long durationNanos;
+	final long drainNanos;					// How long to wait for outstanding replies once sending stops
+	final int payloadSize;
+	final int windowSize;					// Requests in flight per connection
+	final int selectorCount;
+	final String reportPath;				// Empty to skip the report file
+	final boolean quiet;					// No status lines and no report on standard out
+	final DigestAlgorithm[] algorithms;		// Connection i asks for algorithms[i mod length]
+	final Payload[] payloads;				// Pre-hashed payloads to cycle through, empty to hash a fresh one per request
+
+	final StatTracker statTracker;			// Interval figures for the status line
+	final LatencyHistogram latency;			// From intended send time, for requests due inside the measurement window
+	final LatencyHistogram serviceTime;		// From actual send time, same requests
+	final LongAdder inFlight;
+	final LongAdder measuredSent;			// Requests due inside the measurement window
+	final LongAdder measuredReplies;		// Replies received inside the measurement window
+	final LongAdder verificationFailures;	// Replies whose digest did not match the payload sent
+	final LongAdder rejected;				// Replies with a non-OK status
+	final LongAdder connectFailures;
+	final LongAdder disconnects;			// Connections the server closed or broke during the run
+	final LongAdder unanswered;				// Requests still in flight after the drain
+
+	long startTime;							// When the first connection is opened, in System.nanoTime()
+	long measureStart;						// End of ramp-up
+	volatile long sendDeadline;				// No new requests from here on
+	volatile long drainDeadline;			// Selector threads give up on outstanding replies here
+
+	// Payload and its expected digest under each algorithm in use
+	static final class Payload {
+		final byte[] data;
+		final byte[][] digests;				// Indexed like LoadGenerator.algorithms
+
+		Payload(byte[] data, byte[][] digests) {
+			this.data = data;
+			this.digests = digests;
+		}
+	}
+
+	public LoadGenerator(String serverHost, int serverPort, CommandLineOptions options) {
+		this.serverHost = serverHost;
+		this.serverPort = serverPort;
+		this.connectionCount = options.getInt("connections", 100);
+		this.ratePerConnection = options.getDouble("rate", 10);
+		this.arrivalPattern = ArrivalSchedule.Pattern.parse(options.getString("arrival", "constant"));
+		this.burstSize = options.getInt("burst-size", 10);
+		this.seed = options.getLong("seed", 455);
+		this.rampUpNanos = (long) (options.getDouble("ramp-up", 5) * 1e9);
+		this.durationNanos = (long) (options.getDouble("duration", 30) * 1e9);
+		this.drainNanos = (long) (options.getDouble("drain", 5) * 1e9);
+		this.payloadSize = options.getInt("payload-size", HashMessage.DEFAULT_PAYLOAD_SIZE);
+		this.windowSize = options.getInt("window", 1);
+		this.selectorCount = options.getInt("selectors", Math.min(4, Runtime.getRuntime().availableProcessors()));
+		this.reportPath = options.getString("report", "load-report.json");
+		this.quiet = options.getBoolean("quiet", false);
+		if (connectionCount < 1 || windowSize < 1 || selectorCount < 1 || burstSize < 1 || payloadSize < 0 || ratePerConnection < 0)
+			throw new IllegalArgumentException("--connections, --window, --selectors and --burst-size must be at least 1, --payload-size and --rate not negative");
+		this.algorithms = DigestAlgorithms.parseList(options.getString("algorithm", "sha1"));
+		this.payloads = generatePayloads(options.getInt("payload-pool", 1024), payloadSize, algorithms, new Random(seed));
+		this.statTracker = new StatTracker();
+		this.latency = new LatencyHistogram();
+		this.serviceTime = new LatencyHistogram();
+		this.inFlight = new LongAdder();
+		this.measuredSent = new LongAdder();
+		this.measuredReplies = new LongAdder();
+		this.verificationFailures = new LongAdder();
+		this.rejected = new LongAdder();
+		this.connectFailures = new LongAdder();
+		this.disconnects = new LongAdder();
+		this.unanswered = new LongAdder();
+	}
+
+	// Hashing a fresh payload for every request would make this process the bottleneck long before the
+	// server, so by default requests cycle through a pool of payloads hashed up front. The bytes come from
+	// random, so the same --seed gives the same payloads and digests.
+	private static Payload[] generatePayloads(int count, int payloadSize, DigestAlgorithm[] algorithms, Random random) {
+		if (count < 0)
+			throw new IllegalArgumentException("--payload-pool must not be negative");
+		Payload[] payloads = new Payload[count];
+		for (int i = 0; i < count; i++) {
+			byte[] data = new byte[payloadSize];
+			random.nextBytes(data);
+			byte[][] digests = new byte[algorithms.length][];
+			for (int a = 0; a < algorithms.length; a++) {
+				digests[a] = new byte[algorithms[a].getLength()];
+				algorithms[a].digest(data, digests[a], 0);
+			}
+			payloads[i] = new Payload(data, digests);
+		}
+		return payloads;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println(usage());
+			System.exit(0);
+		}
+		LoadGenerator generator = null;
+		try {
+			generator = new LoadGenerator(args[0], Integer.parseInt(args[1]), new CommandLineOptions(args, 2));
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			System.out.println(usage());
+			System.exit(0);
+		}
+		generator.run();
+	}
+
+	// Runs the whole ramp-up, measurement and drain, then writes the report. The figures stay available
+	// from the getters afterwards, for drivers that run the generator in-process.
+	public void run() throws IOException {
+		if (!quiet) System.out.println("Load generator started.  Server: " + serverHost + ":" + serverPort + "\tConnections: " + connectionCount + "\tRate: " + ratePerConnection
+				+ " per connection per second (" + arrivalPattern + ")\tPayload: " + payloadSize + " bytes\tWindow: " + windowSize + "\tSelectors: " + selectorCount + "\tAlgorithm: " + algorithmNames());
+
+		startTime = System.nanoTime() + 100000000L;
+		measureStart = startTime + rampUpNanos;
+		sendDeadline = measureStart + durationNanos;
+		drainDeadline = sendDeadline + drainNanos;
+
+		// Connection i opens i/N of the way through the ramp-up, on selector i mod S
+		ArrayList<LoadReactor> reactors = new ArrayList<LoadReactor>();
+		for (int i = 0; i < selectorCount; i++)
+			reactors.add(new LoadReactor(i, this, debug));
+		for (int i = 0; i < connectionCount; i++)
+			reactors.get(i % selectorCount).add(new LoadConnection(i, this, startTime + rampUpNanos * i / connectionCount));
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for (LoadReactor reactor : reactors) {
+			Thread thread = new Thread(reactor, "load-selector-" + threads.size());
+			threads.add(thread);
+			thread.start();
+		}
+
+		// Print statistics every 5 seconds until the selector threads finish
+		statTracker.snapshot();
+		for (Thread thread : threads) {
+			while (thread.isAlive()) {
+				try {
+					thread.join(5000);
+				} catch (InterruptedException e) {
+					System.out.println(e);
+					return;
+				}
+				if (thread.isAlive() && !quiet)
+					printStatus();
+			}
+		}
+		if (!quiet)
+			printStatus();
+		writeReport();
+	}
+
+	private void printStatus() {
+		Calendar calendar = Calendar.getInstance();
+		Timestamp currentTimestamp = new java.sql.Timestamp(calendar.getTime().getTime());
+		StatTracker.Interval interval = statTracker.snapshot();
+		double seconds = Math.max(interval.getSeconds(), 1e-9);
+		System.out.println(currentTimestamp + "\tSent: " + (long) (interval.writes / seconds) + "/s\tReceived: " + (long) (interval.reads / seconds) + "/s\tConnections: " + interval.connections
+				+ "\tIn flight: " + inFlight.sum() + "\tVerification failures: " + verificationFailures.sum() + "\tLatency p50/p99/p999/max us: " + interval.getLatency(Stage.END_TO_END));
+	}
+
+	// Machine-readable summary of the steady-state window
+	private void writeReport() throws IOException {
+		double seconds = durationNanos / 1e9;
+		StringBuilder json = new StringBuilder();
+		json.append("{\n");
+		json.append("  \"server\": \"").append(serverHost).append(':').append(serverPort).append("\",\n");
+		json.append("  \"config\": {\"connections\": ").append(connectionCount).append(", \"rate_per_connection\": ").append(ratePerConnection)
+				.append(", \"arrival\": \"").append(arrivalPattern.name().toLowerCase()).append("\", \"burst_size\": ").append(burstSize).append(", \"seed\": ").append(seed)
+				.append(", \"ramp_up_s\": ").append(rampUpNanos / 1e9).append(", \"duration_s\": ").append(seconds).append(", \"payload_size\": ").append(payloadSize)
+				.append(", \"window\": ").append(windowSize).append(", \"selectors\": ").append(selectorCount).append(", \"payload_pool\": ").append(payloads.length)
+				.append(", \"algorithm\": \"").append(algorithmNames()).append("\"},\n");
+		json.append("  \"connections\": {\"requested\": ").append(connectionCount).append(", \"connect_failures\": ").append(connectFailures.sum())
+				.append(", \"disconnects\": ").append(disconnects.sum()).append("},\n");
+		json.append("  \"totals\": {\"sent\": ").append(statTracker.getWriteCount()).append(", \"received\": ").append(statTracker.getReadCount())
+				.append(", \"verification_failures\": ").append(verificationFailures.sum()).append(", \"rejected\": ").append(rejected.sum())
+				.append(", \"unanswered\": ").append(unanswered.sum()).append("},\n");
+		json.append("  \"measured\": {\"seconds\": ").append(seconds).append(", \"sent\": ").append(measuredSent.sum()).append(", \"received\": ").append(measuredReplies.sum())
+				.append(", \"offered_msgs_per_s\": ").append(format(measuredSent.sum() / seconds)).append(", \"throughput_msgs_per_s\": ").append(format(measuredReplies.sum() / seconds)).append("},\n");
+		appendLatency(json, "latency_us", latency.snapshot());
+		json.append(",\n");
+		appendLatency(json, "service_time_us", serviceTime.snapshot());
+		json.append("\n");
+		json.append("}\n");
+
+		if (!quiet)
+			System.out.print(json);
+		if (reportPath.isEmpty())
+			return;
+		try (PrintWriter out = new PrintWriter(new FileWriter(reportPath))) {
+			out.print(json);
+		}
+		if (!quiet) System.out.println("Report written to " + reportPath);
+	}
+
+	// Requests per second due inside the measurement window
+	public double getOfferedRate() {
+		return measuredSent.sum() / (durationNanos / 1e9);
+	}
+
+	// Replies per second received inside the measurement window
+	public double getThroughput() {
+		return measuredReplies.sum() / (durationNanos / 1e9);
+	}
+
+	// From intended send time, for requests due inside the measurement window
+	public LatencyHistogram.Snapshot getLatency() {
+		return latency.snapshot();
+	}
+
+	public LatencyHistogram.Snapshot getServiceTime() {
+		return serviceTime.snapshot();
+	}
+
+	public long getVerificationFailures() {
+		return verificationFailures.sum();
+	}
+
+	public long getRejected() {
+		return rejected.sum();
+	}
+
+	public long getConnectFailures() {
+		return connectFailures.sum();
+	}
+
+	public long getDisconnects() {
+		return disconnects.sum();
+	}
+
+	public long getUnanswered() {
+		return unanswered.sum();
+	}
+
+	private static void appendLatency(StringBuilder json, String name, LatencyHistogram.Snapshot measured) {
+		json.append("  \"").append(name).append("\": {\"count\": ").append(measured.getCount()).append(", \"mean\": ").append(format(measured.getMean() / 1000.0));
+		double[] percentiles = { 0.50, 0.90, 0.99, 0.999 };
+		String[] names = { "p50", "p90", "p99", "p999" };
+		for (int i = 0; i < percentiles.length; i++)
+			json.append(", \"").append(names[i]).append("\": ").append(format(measured.getValueAtPercentile(percentiles[i]) / 1000.0));
+		json.append(", \"max\": ").append(format(measured.getMax() / 1000.0)).append("}");
+	}
+
+	private String algorithmNames() {
+		String names = "";
+		for (DigestAlgorithm algorithm : algorithms)
+			names += (names.isEmpty() ? "" : ",") + algorithm.getName();
+		return names;
+	}
+
+	private static String format(double value) {
+		return String.format(Locale.ROOT, "%.1f", value);
+	}
+
+	private static String usage() {
+		return "Usage:  LoadGenerator <server-host> <server-port> [--connections=<n>] [--rate=<requests-per-second-per-connection>] [--arrival=constant|poisson|burst] [--burst-size=<n>] [--seed=<n>] [--ramp-up=<seconds>] [--duration=<seconds>] "
+				+ "[--drain=<seconds>] [--payload-size=<bytes>] [--payload-pool=<n>] [--algorithm=<name>[,<name>...]] [--window=<requests-in-flight>] [--selectors=<n>] [--report=<file>] [--quiet]";
+	}
+}
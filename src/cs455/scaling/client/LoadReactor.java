@@ -0,0 +1,97 @@
+package cs455.scaling.client;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+// Selector thread for one share of the load generator's connections. Each pass opens the connections
+// whose ramp-up slot has come, sends whatever is due, then selects until the next send is due.
+public class LoadReactor implements Runnable {
+
+	private static final long MAX_SELECT_MS = 10;
+
+	private final int reactorID;
+	private final LoadGenerator generator;
+	private final Selector selector;
+	private final ArrayList<LoadConnection> connections;
+	private final boolean debug;
+	private int opened;							// Connections are in ramp-up order, so these come first
+
+	public LoadReactor(int reactorID, LoadGenerator generator, boolean debug) throws IOException {
+		this.reactorID = reactorID;
+		this.generator = generator;
+		this.selector = Selector.open();
+		this.connections = new ArrayList<LoadConnection>();
+		this.debug = debug;
+		this.opened = 0;
+	}
+
+	// Before the thread starts only
+	void add(LoadConnection connection) {
+		connections.add(connection);
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				long now = System.nanoTime();
+				if (now - generator.drainDeadline >= 0 || (now - generator.sendDeadline >= 0 && !anyInFlight()))
+					break;
+				openDue(now);
+				long nextDue = Long.MAX_VALUE;
+				if (now - generator.sendDeadline < 0) {
+					for (int i = 0; i < opened; i++)
+						nextDue = Math.min(nextDue, connections.get(i).sendDue(now));
+				}
+				if (opened < connections.size())
+					nextDue = Math.min(nextDue, connections.get(opened).getConnectTime());
+				nextDue = Math.min(nextDue, generator.sendDeadline);
+
+				long waitMs = Math.min(MAX_SELECT_MS, (nextDue - System.nanoTime()) / 1000000L);
+				if (waitMs > 0)
+					selector.select(waitMs);
+				else
+					selector.selectNow();
+				processKeys();
+			}
+		} catch (IOException e) {
+			System.out.println(e);
+		}
+		for (LoadConnection connection : connections)
+			connection.finish();
+		try {
+			selector.close();
+		} catch (IOException e) {
+			System.out.println(e);
+		}
+		if (debug) System.out.println("Load selector " + reactorID + " finished.");
+	}
+
+	private void openDue(long now) {
+		while (opened < connections.size() && now - connections.get(opened).getConnectTime() >= 0) {
+			connections.get(opened).connect(selector);
+			opened++;
+		}
+	}
+
+	private boolean anyInFlight() {
+		for (int i = 0; i < opened; i++) {
+			if (connections.get(i).getInFlight() > 0)
+				return true;
+		}
+		return false;
+	}
+
+	private void processKeys() {
+		Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+		while (keys.hasNext()) {
+			SelectionKey key = keys.next();
+			keys.remove();
+			if (key.isValid())
+				((LoadConnection) key.attachment()).handle(key);
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package cs455.scaling.server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import cs455.util.CommandLineOptions;
+
+// Bounds the number of requests that have been read but not yet hashed, each of which holds a payload
+// buffer. Read and reply tasks are bounded already (one read task per connection, one reply per hashed
+// request), so this also bounds the task queue. When the limit is reached the server either stops
+// reading, leaving TCP flow control to hold the clients back until the backlog falls to the low
+// watermark, or keeps reading and answers new requests with a BUSY reply without hashing them.
+public class AdmissionControl {
+
+	public enum OverloadPolicy {
+		PAUSE,		// Turn off OP_READ on connections until the backlog drains to the low watermark
+		SHED;		// Keep reading, but reply BUSY to requests over the limit
+
+		public static OverloadPolicy parse(String name) {
+			for (OverloadPolicy policy : values()) {
+				if (policy.name().equalsIgnoreCase(name))
+					return policy;
+			}
+			throw new IllegalArgumentException("Unknown overload policy: " + name);
+		}
+	}
+
+	private final int highWatermark;							// Pending requests at which admission stops
+	private final int lowWatermark;								// PAUSE: pending requests at which reading resumes
+	private final OverloadPolicy policy;
+	private final AtomicInteger pending;						// Requests admitted and not yet hashed
+	private volatile boolean paused;
+	private final ConcurrentLinkedQueue<Connection> parked;		// PAUSE: connections waiting for reads to resume
+	private final LongAdder shed;								// SHED: requests answered BUSY
+	private final LongAdder pauses;								// PAUSE: times the high watermark was reached
+
+	public AdmissionControl(CommandLineOptions options) {
+		this.highWatermark = options.getInt("queue-limit", 4096);
+		this.lowWatermark = options.getInt("queue-low-watermark", highWatermark / 2);
+		this.policy = OverloadPolicy.parse(options.getString("overload", "pause"));
+		if (highWatermark < 1 || lowWatermark < 0 || lowWatermark >= highWatermark)
+			throw new IllegalArgumentException("--queue-limit must be at least 1 and --queue-low-watermark below it");
+		this.pending = new AtomicInteger();
+		this.paused = false;
+		this.parked = new ConcurrentLinkedQueue<Connection>();
+		this.shed = new LongAdder();
+		this.pauses = new LongAdder();
+	}
+
+	// Worker thread: a request has been read. Returns false if it must be shed instead of hashed.
+	// Under PAUSE every request already read is admitted, so the backlog may overshoot the limit by
+	// what the read tasks in flight bring in.
+	public boolean admit() {
+		if (policy == OverloadPolicy.SHED && pending.get() >= highWatermark) {
+			shed.increment();
+			return false;
+		}
+		if (pending.incrementAndGet() >= highWatermark && policy == OverloadPolicy.PAUSE && !paused) {
+			paused = true;
+			pauses.increment();
+		}
+		return true;
+	}
+
+	// Worker thread: an admitted request has been hashed and its buffer released
+	public void completed() {
+		if (pending.decrementAndGet() <= lowWatermark && paused) {
+			paused = false;
+			resumeParked();
+		}
+	}
+
+	// PAUSE: whether connections should stop reading
+	public boolean isPaused() {
+		return paused;
+	}
+
+	// A connection that has turned OP_READ off waits here. If reads resumed in the meantime it is
+	// handed straight back, so no connection is left parked while the server is not paused.
+	void park(Connection connection) {
+		parked.add(connection);
+		if (!paused)
+			resumeParked();
+	}
+
+	private void resumeParked() {
+		Connection connection;
+		while ((connection = parked.poll()) != null)
+			connection.resumeReads();
+	}
+
+	public int getPending() {
+		return pending.get();
+	}
+
+	public long getShedCount() {
+		return shed.sum();
+	}
+
+	public long getPauseCount() {
+		return pauses.sum();
+	}
+
+	public int getParkedCount() {
+		return parked.size();
+	}
+
+	public String getStats() {
+		String stats = "Pending requests: " + getPending() + "/" + highWatermark;
+		if (policy == OverloadPolicy.PAUSE)
+			return stats + "\tReads paused: " + (paused ? "yes" : "no") + " (" + getPauseCount() + " times, " + getParkedCount() + " connections)";
+		return stats + "\tShed: " + getShedCount();
+	}
+
+	public static String usage() {
+		return "[--queue-limit=<requests>] [--queue-low-watermark=<requests>] [--overload=pause|shed]";
+	}
+}
@@ -0,0 +1,292 @@
+package cs455.scaling.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cs455.message.FrameHeader;
+import cs455.message.Protocol;
+import cs455.util.BufferPool;
+import cs455.util.DigestAlgorithm;
+import cs455.util.DigestAlgorithms;
+import cs455.util.ParallelHashing;
+import cs455.util.StatTracker;
+import cs455.util.StatTracker.Stage;
+
+// Proactor engine on NIO.2 asynchronous channels, selected with --engine=async. Accepts, reads and
+// writes are started without blocking and finish in completion handlers run by a channel group of
+// <thread-pool-size> threads. Each handler starts the next step, so a connection goes read, hash,
+// write, read again with no selector loop and no task queue in between. One request per connection is
+// in progress at a time and replies go out in request order, as with the virtual-thread engine.
+// Idle, read and write timeouts are passed to the channel with each read and write.
+public class AsyncEngine {
+
+	private final int serverPort;
+	private final int threadCount;					// Threads in the channel group, which run every handler
+	private final StatTracker statTracker;
+	private final BufferPool bufferPool;
+	private final ConnectionConfig config;
+	private final DigestCache digestCache;			// Null when not enabled
+	private final ParallelHashing parallelHashing;
+	private final boolean debug;
+	private final Set<AsyncConnection> connections;	// Open client connections, closed on shutdown
+	private AsynchronousChannelGroup group;
+	private AsynchronousServerSocketChannel serverChannel;
+
+	// Where a connection is in its current request
+	private enum Phase {
+		HEADER,
+		PAYLOAD,
+		WRITE
+	}
+
+	public AsyncEngine(int serverPort, int threadCount, StatTracker statTracker, BufferPool bufferPool, ConnectionConfig config, DigestCache digestCache, ParallelHashing parallelHashing, boolean debug) {
+		this.serverPort = serverPort;
+		this.threadCount = threadCount;
+		this.statTracker = statTracker;
+		this.bufferPool = bufferPool;
+		this.config = config;
+		this.digestCache = digestCache;
+		this.parallelHashing = parallelHashing;
+		this.debug = debug;
+		this.connections = ConcurrentHashMap.newKeySet();
+	}
+
+	// Bind the server socket and post the first accept; returns the port it is bound to
+	public int start() throws IOException {
+		AtomicInteger threadNumber = new AtomicInteger();
+		ThreadFactory threadFactory = runnable -> new Thread(runnable, "async-" + threadNumber.incrementAndGet());
+		group = AsynchronousChannelGroup.withFixedThreadPool(threadCount, threadFactory);
+		serverChannel = AsynchronousServerSocketChannel.open(group);
+		serverChannel.bind(new InetSocketAddress(serverPort));
+		int port = ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+		if (debug) System.out.println(" Async engine accepting on port " + port);
+		serverChannel.accept(null, acceptHandler);
+		return port;
+	}
+
+	// Stop accepting and close every client channel. Their pending reads and writes fail, which cleans
+	// each connection up, and the group's threads end once the last handler has run.
+	public void shutdown() {
+		try {
+			serverChannel.close();
+		} catch (IOException e) {
+			System.out.println(e);
+		}
+		for (AsyncConnection connection : connections) {
+			try {
+				connection.channel.close();
+			} catch (IOException e) {
+				System.out.println(e);
+			}
+		}
+		group.shutdown();
+	}
+
+	// Posts the next accept before setting up the new connection, so connecting clients are never kept waiting
+	private final CompletionHandler<AsynchronousSocketChannel, Void> acceptHandler = new CompletionHandler<AsynchronousSocketChannel, Void>() {
+		@Override
+		public void completed(AsynchronousSocketChannel channel, Void unused) {
+			serverChannel.accept(null, this);
+			if (debug) System.out.println("Accepted incoming connection");
+			AsyncConnection connection = new AsyncConnection(channel);
+			connections.add(connection);
+			statTracker.incrementConnections();
+			connection.readHeader();
+		}
+
+		@Override
+		public void failed(Throwable e, Void unused) {
+			if (!serverChannel.isOpen())
+				return;
+			System.out.println(e);
+			serverChannel.accept(null, this);
+		}
+	};
+
+	// One client. Only one read or write is ever pending, so the handler never runs on two threads at once.
+	private final class AsyncConnection implements CompletionHandler<Integer, Void> {
+		private final AsynchronousSocketChannel channel;
+		private final ByteBuffer headerBuffer;
+		private final FrameHeader header;
+		private final ByteBuffer pooled;					// Holds payloads up to the pool's buffer size, returned on close
+		private ByteBuffer payload;							// Payload being read
+		private ByteBuffer reply;							// Reply being written
+		private Phase phase;
+		private long frameStarted;							// When the first byte of the current request arrived, 0 before then
+		private long arrival;								// When the current request's header was complete
+		private long writeStart;
+		private int replyLength;
+		private DigestAlgorithm streamAlgorithm;			// --streaming-hash: algorithm of the payload being hashed, null when buffering
+		private DigestAlgorithm.Incremental streamDigest;	// and its running digest, reused while the algorithm stays the same
+		private int streamRemaining;						// Payload bytes not yet read while streaming
+		private boolean closed;
+
+		AsyncConnection(AsynchronousSocketChannel channel) {
+			this.channel = channel;
+			this.headerBuffer = ByteBuffer.allocate(Protocol.REQUEST_HEADER_LENGTH);
+			this.header = new FrameHeader();
+			this.pooled = bufferPool.acquire();
+		}
+
+		// Between requests only the idle timeout applies
+		void readHeader() {
+			phase = Phase.HEADER;
+			frameStarted = 0;
+			headerBuffer.clear();
+			channel.read(headerBuffer, config.idleTimeoutNanos, TimeUnit.NANOSECONDS, null, this);
+		}
+
+		// Once a request has started it has to arrive in full within the read timeout
+		private void readMore(ByteBuffer buffer) {
+			long timeout = 0;
+			if (config.readTimeoutNanos > 0)
+				timeout = Math.max(1, frameStarted + config.readTimeoutNanos - System.nanoTime());
+			channel.read(buffer, timeout, TimeUnit.NANOSECONDS, null, this);
+		}
+
+		private void writeReply() {
+			channel.write(reply, config.writeTimeoutNanos, TimeUnit.NANOSECONDS, null, this);
+		}
+
+		@Override
+		public void completed(Integer count, Void unused) {
+			try {
+				if (count == -1) {
+					if (phase != Phase.HEADER || headerBuffer.position() > 0)
+						throw new EOFException("Client closed the connection part way through a frame");
+					close();
+					return;
+				}
+				switch (phase) {
+				case HEADER:
+					if (frameStarted == 0)
+						frameStarted = System.nanoTime();
+					if (headerBuffer.hasRemaining()) {
+						readMore(headerBuffer);
+						return;
+					}
+					arrival = System.nanoTime();
+					headerBuffer.flip();
+					header.decodeRequest(headerBuffer, config.maxPayload);
+					startPayload(header.getPayloadLength());
+					break;
+				case PAYLOAD:
+					if (streamAlgorithm != null)
+						feedStream();
+					if (payload.hasRemaining())
+						readMore(payload);
+					else
+						hashAndReply();
+					break;
+				case WRITE:
+					if (reply.hasRemaining()) {
+						writeReply();
+						return;
+					}
+					long writeEnd = System.nanoTime();
+					statTracker.recordLatency(Stage.WRITE, writeEnd - writeStart);
+					statTracker.recordLatency(Stage.END_TO_END, writeEnd - arrival);
+					statTracker.incrementWrites();
+					statTracker.addBytesWritten(replyLength);
+					statTracker.addWriteBatch(1);
+					readHeader();
+					break;
+				}
+			} catch (IOException e) {
+				failed(e, null);
+			}
+		}
+
+		@Override
+		public void failed(Throwable e, Void unused) {
+			if (debug) System.out.println(e);
+			if (e instanceof InterruptedByTimeoutException)
+				statTracker.incrementTimeouts();
+			close();
+		}
+
+		// Small payloads are read into the pooled buffer, larger ones get a buffer of their own. With
+		// --streaming-hash a payload whose algorithm can be fed piece by piece goes through the pooled
+		// buffer a piece at a time instead.
+		private void startPayload(int length) {
+			phase = Phase.PAYLOAD;
+			DigestAlgorithm algorithm = config.streamingHash ? DigestAlgorithms.forId(header.getAlgorithm()) : null;
+			if (algorithm != null && algorithm != streamAlgorithm) {
+				streamDigest = algorithm.newIncremental();
+				algorithm = (streamDigest == null) ? null : algorithm;
+			}
+			streamAlgorithm = algorithm;
+			if (streamAlgorithm != null) {
+				payload = pooled;
+				streamRemaining = length;
+				payload.clear().limit(Math.min(payload.capacity(), length));
+			}
+			else {
+				payload = (length <= pooled.capacity()) ? pooled : ByteBuffer.allocate(length);
+				payload.clear().limit(length);
+			}
+			if (payload.hasRemaining())
+				readMore(payload);
+			else
+				hashAndReply();
+		}
+
+		// Hashes what the last read put in the pooled buffer and makes room for the rest of the payload
+		private void feedStream() {
+			payload.flip();
+			streamRemaining -= payload.remaining();
+			streamDigest.update(payload);
+			payload.clear().limit(Math.min(payload.capacity(), streamRemaining));
+		}
+
+		// Runs on the thread whose read completed the payload, then posts the write of the reply
+		private void hashAndReply() {
+			int length = header.getPayloadLength();
+			statTracker.addBytesRead(Protocol.REQUEST_HEADER_LENGTH + length);
+			long hashStart = System.nanoTime();
+			statTracker.recordLatency(Stage.READ, hashStart - arrival);
+
+			if (streamAlgorithm != null) {
+				reply = ReplyBuilder.finish(streamAlgorithm, streamDigest, header.getRequestID());
+			}
+			else {
+				payload.flip();
+				reply = ReplyBuilder.build(digestCache, parallelHashing, header.getAlgorithm(), header.getRequestID(), payload);
+			}
+			payload = null;
+			statTracker.incrementReads();
+			writeStart = System.nanoTime();
+			statTracker.recordLatency(Stage.HASH, writeStart - hashStart);
+			replyLength = reply.remaining();
+			phase = Phase.WRITE;
+			writeReply();
+		}
+
+		// Only ever called from this connection's handler, after its last read or write has finished
+		private void close() {
+			if (closed)
+				return;
+			closed = true;
+			try {
+				channel.close();
+			} catch (IOException e) {
+				System.out.println(e);
+			}
+			bufferPool.release(pooled);
+			connections.remove(this);
+			statTracker.decrementConnections();
+		}
+	}
+}
@@ -0,0 +1,500 @@
+package cs455.scaling.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cs455.message.FrameHeader;
+import cs455.message.Protocol;
+import cs455.scaling.server.tasks.ComputeHashTask;
+import cs455.util.BufferPool;
+import cs455.util.DigestAlgorithm;
+import cs455.util.DigestAlgorithms;
+import cs455.util.ParallelHashing;
+import cs455.util.StatTracker;
+import cs455.util.TimingWheel;
+
+// Per-client state, attached to the client's selection key. Tracks where the connection is in the
+// read -> hash -> reply cycle so that the reactor and the worker threads never act on it at once:
+// the reactor drops OP_READ while a read task is in flight, and the worker asks for it back when done.
+public class Connection {
+	
+	public enum State {
+		IDLE,		// OP_READ armed, waiting for the client
+		READING,	// A read task is queued or running, OP_READ is off
+		CLOSED
+	}
+	
+	private static final int MAX_READS_PER_TASK = 16;	// Read calls one read task may make before yielding the worker
+	
+	private final SocketChannel channel;
+	private final SelectionKey key;
+	private final Reactor reactor;
+	private final StatTracker statTracker;
+	private final BufferPool bufferPool;
+	private final AdmissionControl admission;
+	private final DigestCache digestCache;				// Digests of payloads seen before, null when not enabled
+	private final ParallelHashing parallelHashing;		// Splits large tree digests over the server's hashing threads
+	private volatile State state;
+	private final ConnectionConfig config;
+	private final ByteBuffer headerBuffer;				// Header of the next request frame
+	private final FrameHeader header;					// Decoded header of the frame being read
+	private final ByteBuffer[] scatter;					// { payload, next header } for single-syscall reads
+	private ByteBuffer readBuffer;						// Payload being assembled, null while reading a header
+	private boolean readBufferPooled;
+	private DigestAlgorithm streamAlgorithm;			// Streaming: algorithm of the payload being hashed, null when buffering
+	private DigestAlgorithm.Incremental streamDigest;	// Streaming: running digest, kept for the next payload of the same algorithm
+	private DigestAlgorithm streamDigestAlgorithm;	// Streaming: algorithm streamDigest belongs to, kept between payloads
+	private int streamRemaining;						// Streaming: payload bytes not yet read
+	private final ArrayDeque<ByteBuffer> outbound;		// Replies waiting to be written, guarded by itself
+	private final ByteBuffer[] gather;					// Batch handed to a single gathering write
+	private boolean flushing;							// A thread is writing from outbound right now
+	private boolean awaitingWritable;					// The channel filled up, the reactor flushes on OP_WRITE
+	private boolean flushScheduled;						// A lingering flush is queued on the reactor
+	private long outboundBytes;
+	long flushDeadline;									// When a lingering flush is due, in System.nanoTime()
+	private final AtomicInteger requestedOps;			// Interest ops the reactor should switch on at its next pass
+	// Per-connection counters. Each side has a single writer at a time (the reading worker, the flusher),
+	// so plain volatile increments are enough; readers such as the status line may see them a little stale.
+	private volatile long messagesRead;
+	private volatile long repliesWritten;
+	private volatile long bytesRead;
+	private volatile long bytesWritten;
+	private long reportedMessages;						// Status thread only: messagesRead at the last report
+	// Deadline tracking. Workers stamp these as data moves and the reactor compares them against the
+	// timeouts whenever the connection comes up on its timing wheel, so activity never touches the wheel.
+	private volatile long lastActivity;					// Last read or write that moved any bytes
+	private volatile long frameStarted;					// When the partly read request frame began, 0 between frames
+	private volatile long writeBlockedSince;			// When replies last stopped fitting in the socket, 0 while they fit
+	final TimingWheel.Entry<Connection> deadlineEntry;	// Reactor thread only: this connection's place on the timing wheel
+	
+	public Connection(SocketChannel channel, SelectionKey key, Reactor reactor, StatTracker statTracker, BufferPool bufferPool, AdmissionControl admission, DigestCache digestCache, ParallelHashing parallelHashing, ConnectionConfig config) {
+		this.channel = channel;
+		this.key = key;
+		this.reactor = reactor;
+		this.statTracker = statTracker;
+		this.bufferPool = bufferPool;
+		this.admission = admission;
+		this.digestCache = digestCache;
+		this.parallelHashing = parallelHashing;
+		this.state = State.IDLE;
+		this.config = config;
+		this.headerBuffer = ByteBuffer.allocate(Protocol.REQUEST_HEADER_LENGTH);
+		this.header = new FrameHeader();
+		this.scatter = new ByteBuffer[2];
+		this.readBuffer = null;
+		this.outbound = new ArrayDeque<ByteBuffer>();
+		this.gather = new ByteBuffer[config.writeBatchCount];
+		this.requestedOps = new AtomicInteger();
+		this.lastActivity = System.nanoTime();
+		this.deadlineEntry = new TimingWheel.Entry<Connection>(this);
+	}
+	
+	// Reactor thread: the channel is readable, stop selecting on reads until the worker is done
+	synchronized boolean beginRead() {
+		if (state != State.IDLE)
+			return false;
+		state = State.READING;
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		return true;
+	}
+	
+	// Worker thread: the read task is finished, hand OP_READ back to the reactor
+	public void endRead() {
+		synchronized (this) {
+			if (state == State.CLOSED) {
+				releaseReadBuffer();
+				return;
+			}
+			state = State.IDLE;
+		}
+		if (admission.isPaused())
+			admission.park(this);
+		else
+			requestOps(SelectionKey.OP_READ);
+	}
+	
+	// Reactor thread: the server is over its backlog limit, so leave the client's data in the socket
+	// and wait to be resumed instead of starting a read
+	synchronized void pauseReads() {
+		if (state != State.IDLE)
+			return;
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		admission.park(this);
+	}
+	
+	// Any thread: the backlog has drained, start reading again
+	void resumeReads() {
+		if (state != State.CLOSED)
+			requestOps(SelectionKey.OP_READ);
+	}
+	
+	private void releaseReadBuffer() {
+		if (readBuffer != null && readBufferPooled)
+			bufferPool.release(readBuffer);
+		readBuffer = null;
+	}
+	
+	// Reads whatever the channel has and adds a task to completed for every request frame that is now
+	// whole; a pipelining client may have several in flight. The payload is read straight into its own
+	// buffer and the bytes that follow it land in the header buffer of the next frame, so each frame
+	// usually costs one read call. Stops after MAX_READS_PER_TASK calls to let other connections run.
+	// With --streaming-hash the payload is instead read a pooled buffer at a time and each piece goes
+	// into a running digest as soon as it lands, so the task for a whole frame already holds the reply.
+	public void read(List<ComputeHashTask> completed) throws IOException {
+		long messagesBefore = messagesRead;
+		long bytesRead = 0;
+		boolean endOfStream = false;
+		int reads = 0;
+		while (true) {
+			if (readBuffer == null) {
+				if (headerBuffer.hasRemaining()) {
+					if (reads++ == MAX_READS_PER_TASK)
+						break;
+					int read = channel.read(headerBuffer);
+					if (read == -1) {
+						endOfStream = true;
+						break;
+					}
+					bytesRead += read;
+					if (headerBuffer.hasRemaining())
+						break;
+				}
+				headerBuffer.flip();
+				header.decodeRequest(headerBuffer, config.maxPayload);
+				headerBuffer.clear();
+				startPayload(header.getPayloadLength());
+			}
+			if (readBuffer.hasRemaining()) {
+				if (reads++ == MAX_READS_PER_TASK)
+					break;
+				long read;
+				if (streamAlgorithm != null && streamRemaining > readBuffer.limit()) {
+					// Not the last piece of a streamed payload, nothing after it may be read yet
+					read = channel.read(readBuffer);
+				}
+				else {
+					scatter[0] = readBuffer;
+					scatter[1] = headerBuffer;
+					read = channel.read(scatter);
+				}
+				if (read == -1) {
+					endOfStream = true;
+					break;
+				}
+				bytesRead += read;
+				boolean filled = !readBuffer.hasRemaining();
+				if (streamAlgorithm != null)
+					feedStream();
+				if (readBuffer.hasRemaining()) {
+					// A full buffer means the channel may hold more of the payload
+					if (filled)
+						continue;
+					break;
+				}
+			}
+			if (streamAlgorithm != null) {
+				completed.add(new ComputeHashTask(key, header.getAlgorithm(), header.getRequestID(), ReplyBuilder.finish(streamAlgorithm, streamDigest, header.getRequestID())));
+				bufferPool.release(readBuffer);
+				streamAlgorithm = null;
+			}
+			else {
+				readBuffer.flip();
+				completed.add(new ComputeHashTask(key, header.getAlgorithm(), header.getRequestID(), readBuffer, readBufferPooled));
+			}
+			readBuffer = null;
+			messagesRead++;
+		}
+		if (bytesRead > 0) {
+			statTracker.addBytesRead(bytesRead);
+			this.bytesRead += bytesRead;
+			long now = System.nanoTime();
+			lastActivity = now;
+			if (readBuffer == null && headerBuffer.position() == 0)
+				frameStarted = 0;
+			else if (frameStarted == 0 || messagesRead != messagesBefore)
+				frameStarted = now;
+		}
+		if (endOfStream)
+			close();
+	}
+	
+	// Small payloads go in a pooled direct buffer, anything larger gets a buffer of its own. When
+	// streaming, any payload is read through one pooled buffer, unless its algorithm cannot be fed
+	// piece by piece.
+	private void startPayload(int length) {
+		if (config.streamingHash && startStream(length))
+			return;
+		if (length <= bufferPool.getBufferSize()) {
+			readBuffer = bufferPool.acquire();
+			readBuffer.limit(length);
+			readBufferPooled = true;
+		}
+		else {
+			readBuffer = ByteBuffer.allocate(length);
+			readBufferPooled = false;
+		}
+	}
+	
+	private boolean startStream(int length) {
+		DigestAlgorithm algorithm = DigestAlgorithms.forId(header.getAlgorithm());
+		if (algorithm == null)
+			return false;
+		// finish() leaves the digest ready for the next payload, so only a change of algorithm needs a new one
+		if (algorithm != streamDigestAlgorithm) {
+			DigestAlgorithm.Incremental digest = algorithm.newIncremental();
+			if (digest == null)
+				return false;
+			streamDigest = digest;
+			streamDigestAlgorithm = algorithm;
+		}
+		streamAlgorithm = algorithm;
+		streamRemaining = length;
+		readBuffer = bufferPool.acquire();
+		readBuffer.limit(Math.min(readBuffer.capacity(), length));
+		readBufferPooled = true;
+		return true;
+	}
+	
+	// Hashes what the last read put in the buffer and makes room for the rest of the payload. The buffer
+	// has room left afterwards exactly when some of the payload is still to come.
+	private void feedStream() {
+		readBuffer.flip();
+		streamRemaining -= readBuffer.remaining();
+		streamDigest.update(readBuffer);
+		readBuffer.clear();
+		readBuffer.limit(Math.min(readBuffer.capacity(), streamRemaining));
+	}
+	
+	// Worker thread: a request has been hashed, give back its buffer and its place in the backlog
+	public void recycle(ComputeHashTask task) {
+		if (task.isPooled())
+			bufferPool.release(task.getBuffer());
+		admission.completed();
+	}
+	
+	// Null when the server runs without a digest cache
+	DigestCache getDigestCache() {
+		return digestCache;
+	}
+
+	ParallelHashing getParallelHashing() {
+		return parallelHashing;
+	}
+	
+	// Worker thread: admit a request that has just been read. Returns null if it may be hashed, or,
+	// when the server is shedding load, releases its buffer and returns a BUSY reply to send instead.
+	public ByteBuffer admitOrShed(ComputeHashTask task) {
+		if (admission.admit())
+			return null;
+		if (task.isPooled())
+			bufferPool.release(task.getBuffer());
+		return ReplyBuilder.busy(task.getAlgorithm(), task.getRequestID());
+	}
+	
+	// Queues a reply. If no other thread is already writing for this connection, the caller flushes the
+	// queue with gathering writes, so replies that pile up while a write is in progress share the next
+	// call. With a linger set, a small batch is left for the reactor to flush once the linger expires.
+	public void write(ByteBuffer reply) throws IOException {
+		statTracker.addBytesWritten(reply.remaining());
+		synchronized (outbound) {
+			outbound.add(reply);
+			outboundBytes += reply.remaining();
+			if (flushing || awaitingWritable)
+				return;
+			if (config.writeLingerNanos > 0 && outbound.size() < config.writeBatchCount && outboundBytes < config.writeBatchBytes) {
+				if (!flushScheduled) {
+					flushScheduled = true;
+					flushDeadline = System.nanoTime() + config.writeLingerNanos;
+					reactor.scheduleFlush(this);
+				}
+				return;
+			}
+			flushing = true;
+		}
+		flushOutbound();
+	}
+	
+	// Reactor thread: a lingering flush is due
+	void lingerExpired() throws IOException {
+		synchronized (outbound) {
+			flushScheduled = false;
+			if (flushing || awaitingWritable || outbound.isEmpty())
+				return;
+			flushing = true;
+		}
+		flushOutbound();
+	}
+	
+	// Reactor thread: the channel is writable again, push out pending replies
+	void flush() throws IOException {
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		synchronized (outbound) {
+			awaitingWritable = false;
+			if (flushing)
+				return;
+			flushing = true;
+		}
+		flushOutbound();
+	}
+	
+	// Called by whichever thread set flushing. Writes batches until the queue is empty or the channel
+	// is full, holding the queue's lock only to gather and retire buffers, never across the write call.
+	private void flushOutbound() throws IOException {
+		try {
+			while (true) {
+				int count = 0;
+				long batchBytes = 0;
+				synchronized (outbound) {
+					for (ByteBuffer pending : outbound) {
+						if (count == gather.length || (count > 0 && batchBytes + pending.remaining() > config.writeBatchBytes))
+							break;
+						gather[count++] = pending;
+						batchBytes += pending.remaining();
+					}
+					if (count == 0) {
+						flushing = false;
+						return;
+					}
+				}
+				
+				channel.write(gather, 0, count);
+				
+				int written = 0;
+				boolean channelFull = false;
+				synchronized (outbound) {
+					while (written < count && !gather[written].hasRemaining()) {
+						int replyLength = outbound.removeFirst().limit();
+						outboundBytes -= replyLength;
+						bytesWritten += replyLength;
+						written++;
+					}
+					if (written < count) {
+						channelFull = true;
+						awaitingWritable = true;
+						flushing = false;
+					}
+				}
+				Arrays.fill(gather, 0, count, null);
+				statTracker.addWriteBatch(written);
+				repliesWritten += written;
+				if (written > 0)
+					lastActivity = System.nanoTime();
+				if (channelFull) {
+					if (written > 0 || writeBlockedSince == 0)
+						writeBlockedSince = System.nanoTime();
+					requestOps(SelectionKey.OP_WRITE);
+					return;
+				}
+				if (writeBlockedSince != 0)
+					writeBlockedSince = 0;
+			}
+		} catch (IOException e) {
+			synchronized (outbound) {
+				flushing = false;
+			}
+			throw e;
+		}
+	}
+	
+	public long getMessagesRead() {
+		return messagesRead;
+	}
+	
+	public long getRepliesWritten() {
+		return repliesWritten;
+	}
+	
+	public long getBytesRead() {
+		return bytesRead;
+	}
+	
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+	
+	// Messages read since the previous call. Only the status printer calls this.
+	long takeMessagesSinceReport() {
+		long current = messagesRead;
+		long delta = current - reportedMessages;
+		reportedMessages = current;
+		return delta;
+	}
+	
+	private void requestOps(int ops) {
+		requestedOps.getAndAccumulate(ops, (current, added) -> current | added);
+		reactor.requestInterestOps(this);
+	}
+	
+	// Reactor thread: apply the interest ops requested since the last pass
+	void applyRequestedOps() {
+		int ops = requestedOps.getAndSet(0);
+		if (ops != 0 && key.isValid())
+			key.interestOps(key.interestOps() | ops);
+	}
+	
+	// Reactor thread: the timing wheel has brought this connection up. Closes it if the client has left
+	// replies unread, stalled part way through a request frame or sat idle for too long, and otherwise
+	// returns when to look at it again. Returns -1 once the connection is closed.
+	long checkDeadlines(long now) {
+		if (state == State.CLOSED)
+			return -1;
+		long recheck = now + config.shortestTimeoutNanos();
+		// A worker is reading, or the server itself has stopped reading: neither is the client's doing
+		if (state == State.READING || admission.isPaused())
+			return recheck;
+		long deadline = Long.MAX_VALUE;
+		long blocked = writeBlockedSince;
+		if (blocked != 0 && config.writeTimeoutNanos > 0)
+			deadline = blocked + config.writeTimeoutNanos;
+		long started = frameStarted;
+		if (started != 0) {
+			if (config.readTimeoutNanos > 0)
+				deadline = Math.min(deadline, started + config.readTimeoutNanos);
+		}
+		else if (config.idleTimeoutNanos > 0 && messagesRead == repliesWritten) {
+			// Idle only counts once every request the client sent has been answered
+			deadline = Math.min(deadline, lastActivity + config.idleTimeoutNanos);
+		}
+		if (deadline == Long.MAX_VALUE)
+			return recheck;
+		if (deadline - now > 0)
+			return deadline;
+		statTracker.incrementTimeouts();
+		close();
+		return -1;
+	}
+	
+	public void close() {
+		synchronized (this) {
+			if (state == State.CLOSED)
+				return;
+			// With a read in flight the reading worker still owns readBuffer and gives it back in endRead()
+			if (state != State.READING)
+				releaseReadBuffer();
+			state = State.CLOSED;
+		}
+		key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			System.out.println(e);
+		}
+
+		reactor.connectionClosed(this);
+		statTracker.decrementConnections();
+	}
+	
+	public State getState() {
+		return state;
+	}
+	
+	public SelectionKey getKey() {
+		return key;
+	}
+}
@@ -0,0 +1,51 @@
+package cs455.scaling.server;
+
+import cs455.message.Protocol;
+import cs455.util.CommandLineOptions;
+
+// Settings shared by every client connection, read once from the server's command line
+public class ConnectionConfig {
+	
+	public final int maxPayload;			// Largest request payload accepted, in bytes
+	public final int writeBatchCount;		// Most replies gathered into one write call
+	public final int writeBatchBytes;		// Most reply bytes gathered into one write call
+	public final long writeLingerNanos;		// How long a reply may wait for others to share its write call
+	public final boolean streamingHash;		// Hash payloads piece by piece as they are read instead of once whole
+	public final long idleTimeoutNanos;		// Close a connection with nothing in progress after this long, 0 never does
+	public final long readTimeoutNanos;		// Most time a request frame may take to arrive once it has started, 0 for no limit
+	public final long writeTimeoutNanos;	// Most time a client may leave replies unread, 0 for no limit
+	
+	public ConnectionConfig(CommandLineOptions options) {
+		this.maxPayload = options.getInt("max-payload", Protocol.DEFAULT_MAX_PAYLOAD);
+		this.writeBatchCount = options.getInt("write-batch-count", 64);
+		this.writeBatchBytes = options.getInt("write-batch-bytes", 64 * 1024);
+		this.writeLingerNanos = options.getLong("write-linger-us", 0) * 1000L;
+		this.streamingHash = options.getBoolean("streaming-hash", false);
+		this.idleTimeoutNanos = options.getLong("idle-timeout-ms", 300000) * 1000000L;
+		this.readTimeoutNanos = options.getLong("read-timeout-ms", 10000) * 1000000L;
+		this.writeTimeoutNanos = options.getLong("write-timeout-ms", 10000) * 1000000L;
+		if (writeBatchCount < 1 || writeBatchBytes < 1 || writeLingerNanos < 0)
+			throw new IllegalArgumentException("Write batch limits must be positive and the linger non-negative");
+		if (idleTimeoutNanos < 0 || readTimeoutNanos < 0 || writeTimeoutNanos < 0)
+			throw new IllegalArgumentException("Timeouts must not be negative");
+	}
+	
+	public boolean hasTimeouts() {
+		return idleTimeoutNanos > 0 || readTimeoutNanos > 0 || writeTimeoutNanos > 0;
+	}
+	
+	// Shortest timeout that is switched on, which is how often a connection with no deadline running
+	// is looked at again
+	public long shortestTimeoutNanos() {
+		long shortest = Long.MAX_VALUE;
+		for (long timeout : new long[] { idleTimeoutNanos, readTimeoutNanos, writeTimeoutNanos }) {
+			if (timeout > 0)
+				shortest = Math.min(shortest, timeout);
+		}
+		return shortest;
+	}
+	
+	public static String usage() {
+		return "[--max-payload=<bytes>] [--write-batch-count=<replies>] [--write-batch-bytes=<bytes>] [--write-linger-us=<microseconds>] [--streaming-hash] [--idle-timeout-ms=<ms>] [--read-timeout-ms=<ms>] [--write-timeout-ms=<ms>]";
+	}
+}
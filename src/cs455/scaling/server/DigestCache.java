@@ -0,0 +1,393 @@
+package cs455.scaling.server;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+
+import cs455.util.CommandLineOptions;
+
+// Remembers the digests of recently hashed payloads so a payload the server has seen before is answered
+// without hashing it again. Entries are found by a CRC32C fingerprint of the payload plus its length,
+// which costs a small fraction of the digest, and every hit compares the cached copy of the payload with
+// the request byte for byte, so a fingerprint collision can only cost a miss, never a wrong digest. The
+// cache is split into segments, each with its own lock and its own share of the capacity, and evicts
+// with either CLOCK or W-TinyLFU (--digest-cache=clock|tinylfu).
+public class DigestCache {
+
+	public enum EvictionPolicy {
+		CLOCK,		// Second chance: a referenced entry survives one sweep of the hand
+		TINYLFU;	// Small LRU window in front of a segmented LRU, admission decided by a frequency sketch
+
+		public static EvictionPolicy parse(String name) {
+			for (EvictionPolicy policy : values()) {
+				if (policy.name().equalsIgnoreCase(name))
+					return policy;
+			}
+			throw new IllegalArgumentException("Unknown digest cache policy: " + name);
+		}
+	}
+
+	private static final int ENTRY_OVERHEAD = 96;		// Rough bytes of object headers, map node and fields per entry
+	private static final long SKETCH_MULTIPLIER = 0x9E3779B185EBCA87L;
+
+	// One cached digest and the payload it belongs to
+	private static final class Entry {
+		final long key;
+		final byte[] payload;
+		final byte[] digest;
+		boolean referenced;		// CLOCK: touched since the hand last passed
+		int region;				// TINYLFU: which of the three lists holds the entry
+		int slot;				// CLOCK: index in the ring
+
+		Entry(long key, byte[] payload, byte[] digest) {
+			this.key = key;
+			this.payload = payload;
+			this.digest = digest;
+		}
+
+		long size() {
+			return ENTRY_OVERHEAD + payload.length + digest.length;
+		}
+
+		boolean matches(ByteBuffer data) {
+			return ByteBuffer.wrap(payload).equals(data);
+		}
+	}
+
+	// A share of the cache behind its own lock. Subclasses decide what to evict.
+	private abstract class Segment {
+		final HashMap<Long, Entry> entries = new HashMap<Long, Entry>();
+		final int capacity;
+
+		Segment(int capacity) {
+			this.capacity = capacity;
+		}
+
+		synchronized byte[] get(long key, ByteBuffer data) {
+			Entry entry = entries.get(key);
+			if (entry == null || !entry.matches(data)) {
+				recordMiss(key);
+				return null;
+			}
+			recordHit(entry);
+			return entry.digest;
+		}
+
+		synchronized void put(Entry entry) {
+			Entry previous = entries.get(entry.key);
+			if (previous != null) {
+				// Same fingerprint, different payload: the newer one takes the place
+				remove(previous);
+			}
+			entries.put(entry.key, entry);
+			bytes.add(entry.size());
+			insert(entry);
+		}
+
+		void remove(Entry entry) {
+			entries.remove(entry.key);
+			bytes.add(-entry.size());
+			unlink(entry);
+		}
+
+		void evict(Entry entry) {
+			remove(entry);
+			evictions.increment();
+		}
+
+		void recordMiss(long key) {
+		}
+
+		abstract void recordHit(Entry entry);
+
+		abstract void insert(Entry entry);
+
+		abstract void unlink(Entry entry);
+	}
+
+	// Entries sit in a ring. A hit sets the entry's reference bit; to make room the hand sweeps the ring,
+	// clearing bits as it goes, and evicts the first entry whose bit is already clear.
+	private final class ClockSegment extends Segment {
+		private final Entry[] ring;
+		private int hand;
+		private int used;
+
+		ClockSegment(int capacity) {
+			super(capacity);
+			this.ring = new Entry[capacity];
+		}
+
+		@Override
+		void recordHit(Entry entry) {
+			entry.referenced = true;
+		}
+
+		@Override
+		void insert(Entry entry) {
+			if (used == capacity) {
+				while (ring[hand].referenced) {
+					ring[hand].referenced = false;
+					hand = (hand + 1) % capacity;
+				}
+				evict(ring[hand]);
+			}
+			while (ring[hand] != null)
+				hand = (hand + 1) % capacity;
+			entry.slot = hand;
+			ring[hand] = entry;
+			used++;
+			hand = (hand + 1) % capacity;
+		}
+
+		@Override
+		void unlink(Entry entry) {
+			ring[entry.slot] = null;
+			used--;
+		}
+	}
+
+	// W-TinyLFU. New entries go into a window LRU of about 1% of the capacity. An entry pushed out of the
+	// window competes with the main area's eviction victim, and only the one the frequency sketch has
+	// seen more often stays, so a burst of one-off payloads cannot flush entries that keep coming back.
+	// The main area is a segmented LRU: entries start on probation and a hit there promotes them to the
+	// protected list, which holds 80% of the main area.
+	private final class TinyLfuSegment extends Segment {
+		private static final int WINDOW = 0;
+		private static final int PROBATION = 1;
+		private static final int PROTECTED = 2;
+
+		// Each list is kept in access order, least recently used first
+		private final LinkedHashMap<Long, Entry> window = new LinkedHashMap<Long, Entry>();
+		private final LinkedHashMap<Long, Entry> probation = new LinkedHashMap<Long, Entry>();
+		private final LinkedHashMap<Long, Entry> protectedList = new LinkedHashMap<Long, Entry>();
+		private final int windowCapacity;
+		private final int protectedCapacity;
+		private final FrequencySketch sketch;
+
+		TinyLfuSegment(int capacity) {
+			super(capacity);
+			this.windowCapacity = Math.max(1, capacity / 100);
+			this.protectedCapacity = (capacity - windowCapacity) * 4 / 5;
+			this.sketch = new FrequencySketch(capacity);
+		}
+
+		@Override
+		void recordMiss(long key) {
+			sketch.increment(key);
+		}
+
+		@Override
+		void recordHit(Entry entry) {
+			sketch.increment(entry.key);
+			if (entry.region == PROBATION) {
+				probation.remove(entry.key);
+				entry.region = PROTECTED;
+				protectedList.put(entry.key, entry);
+				if (protectedList.size() > protectedCapacity) {
+					Entry demoted = first(protectedList);
+					protectedList.remove(demoted.key);
+					demoted.region = PROBATION;
+					probation.put(demoted.key, demoted);
+				}
+			}
+			else {
+				LinkedHashMap<Long, Entry> list = list(entry.region);
+				list.remove(entry.key);
+				list.put(entry.key, entry);
+			}
+		}
+
+		@Override
+		void insert(Entry entry) {
+			entry.region = WINDOW;
+			window.put(entry.key, entry);
+			if (window.size() <= windowCapacity)
+				return;
+			Entry candidate = first(window);
+			window.remove(candidate.key);
+			candidate.region = PROBATION;
+			probation.put(candidate.key, candidate);
+			if (entries.size() <= capacity)
+				return;
+			// The candidate is the newest entry on probation, so the victim is the oldest one before it
+			Entry victim = (probation.size() > 1) ? first(probation) : protectedList.isEmpty() ? candidate : first(protectedList);
+			evict(sketch.frequency(candidate.key) > sketch.frequency(victim.key) ? victim : candidate);
+		}
+
+		@Override
+		void unlink(Entry entry) {
+			list(entry.region).remove(entry.key);
+		}
+
+		private LinkedHashMap<Long, Entry> list(int region) {
+			return (region == WINDOW) ? window : (region == PROBATION) ? probation : protectedList;
+		}
+
+		private Entry first(LinkedHashMap<Long, Entry> list) {
+			return list.values().iterator().next();
+		}
+	}
+
+	// Count-min sketch of 4-bit counters, four rows deep. Every counter is halved once the sketch has
+	// counted ten times the capacity, so popularity fades and the sketch never saturates.
+	private static final class FrequencySketch {
+		private static final long[] SEEDS = { 0xC3A5C85C97CB3127L, 0xB492B66FBE98F273L, 0x9AE16A3B2F90404FL, 0xCBF29CE484222325L };
+		private final byte[][] counters;
+		private final int mask;
+		private final int resetAfter;
+		private int additions;
+
+		FrequencySketch(int capacity) {
+			int width = Integer.highestOneBit(Math.max(16, capacity * 2 - 1));
+			this.counters = new byte[SEEDS.length][width];
+			this.mask = width - 1;
+			this.resetAfter = 10 * Math.max(1, capacity);
+		}
+
+		void increment(long key) {
+			for (int row = 0; row < SEEDS.length; row++) {
+				int index = index(key, row);
+				if (counters[row][index] < 15)
+					counters[row][index]++;
+			}
+			if (++additions >= resetAfter) {
+				additions /= 2;
+				for (byte[] row : counters) {
+					for (int i = 0; i < row.length; i++)
+						row[i] >>= 1;
+				}
+			}
+		}
+
+		int frequency(long key) {
+			int frequency = 15;
+			for (int row = 0; row < SEEDS.length; row++)
+				frequency = Math.min(frequency, counters[row][index(key, row)]);
+			return frequency;
+		}
+
+		private int index(long key, int row) {
+			long hash = (key ^ SEEDS[row]) * SKETCH_MULTIPLIER;
+			return (int) (hash >>> 32) & mask;
+		}
+	}
+
+	private final EvictionPolicy policy;
+	private final int capacity;						// Most entries held across all segments
+	private final int maxPayload;					// Larger payloads are hashed but never cached
+	private final Segment[] segments;
+	private final LongAdder hits;
+	private final LongAdder misses;
+	private final LongAdder evictions;
+	private final LongAdder bytes;					// Approximate heap held by cached payloads, digests and entries
+
+	public DigestCache(EvictionPolicy policy, int capacity, int maxPayload) {
+		if (capacity < 1 || maxPayload < 1)
+			throw new IllegalArgumentException("--digest-cache-entries and --digest-cache-max-payload must be at least 1");
+		this.policy = policy;
+		this.capacity = capacity;
+		this.maxPayload = maxPayload;
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+		this.evictions = new LongAdder();
+		this.bytes = new LongAdder();
+		// Enough segments to keep workers off each other's locks, but each one large enough that
+		// splitting the capacity does not skew what gets evicted
+		int segmentCount = 1;
+		while (segmentCount < 16 && capacity / (segmentCount * 2) >= 64)
+			segmentCount *= 2;
+		this.segments = new Segment[segmentCount];
+		for (int i = 0; i < segmentCount; i++) {
+			int share = capacity / segmentCount + (i < capacity % segmentCount ? 1 : 0);
+			segments[i] = (policy == EvictionPolicy.CLOCK) ? new ClockSegment(share) : new TinyLfuSegment(share);
+		}
+	}
+
+	// Null unless the command line turns the cache on
+	public static DigestCache fromOptions(CommandLineOptions options) {
+		String policy = options.getString("digest-cache", "off");
+		if (policy.equalsIgnoreCase("off"))
+			return null;
+		return new DigestCache(EvictionPolicy.parse(policy), options.getInt("digest-cache-entries", 4096), options.getInt("digest-cache-max-payload", 64 * 1024));
+	}
+
+	// Copies the cached digest of the payload's remaining bytes for the given algorithm into out at
+	// offset and returns true, or returns false if it is not cached. The payload is not consumed.
+	public boolean lookup(byte algorithm, ByteBuffer payload, byte[] out, int offset) {
+		if (payload.remaining() > maxPayload)
+			return false;
+		long key = key(algorithm, payload);
+		byte[] digest = segment(key).get(key, payload);
+		if (digest == null) {
+			misses.increment();
+			return false;
+		}
+		hits.increment();
+		System.arraycopy(digest, 0, out, offset, digest.length);
+		return true;
+	}
+
+	// Caches the digest of the payload's remaining bytes, which are copied. The payload is not consumed.
+	public void store(byte algorithm, ByteBuffer payload, byte[] digest, int offset, int length) {
+		if (payload.remaining() > maxPayload)
+			return;
+		long key = key(algorithm, payload);
+		byte[] copy = new byte[payload.remaining()];
+		payload.duplicate().get(copy);
+		byte[] digestCopy = new byte[length];
+		System.arraycopy(digest, offset, digestCopy, 0, length);
+		segment(key).put(new Entry(key, copy, digestCopy));
+	}
+
+	private Segment segment(long key) {
+		return segments[(int) (key >>> 60) & (segments.length - 1)];
+	}
+
+	// Fingerprint of the payload: its CRC32C, which the JVM computes with the CPU's CRC instructions in a
+	// small fraction of the time a digest takes, in the high half, and the length and algorithm in the low
+	// half. The high bits pick the segment.
+	private static long key(byte algorithm, ByteBuffer payload) {
+		CRC32C crc = new CRC32C();
+		crc.update(payload.duplicate());
+		return crc.getValue() << 32 | (long) payload.remaining() << 8 | (algorithm & 0xFF);
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	public long getBytes() {
+		return bytes.sum();
+	}
+
+	public int getEntryCount() {
+		int count = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				count += segment.entries.size();
+			}
+		}
+		return count;
+	}
+
+	public String getStats() {
+		long hitCount = getHits();
+		long lookups = hitCount + getMisses();
+		return String.format("Digest cache (%s): %.1f%% hits of %d lookups, %d/%d entries, %d KB, %d evictions", policy.name().toLowerCase(), lookups == 0 ? 0.0 : 100.0 * hitCount / lookups,
+				lookups, getEntryCount(), capacity, getBytes() / 1024, getEvictions());
+	}
+
+	public static String usage() {
+		return "[--digest-cache=off|clock|tinylfu] [--digest-cache-entries=<n>] [--digest-cache-max-payload=<bytes>]";
+	}
+}
@@ -0,0 +1,17 @@
+package cs455.scaling.server;
+
+// How the thread pool hands queued tasks to worker threads
+public enum DispatchMode {
+	
+	MANAGED,	// Thread pool manager thread pairs each task with an idle worker (original design)
+	QUEUE,		// Workers pull straight from a shared bounded work queue and park when it is empty
+	STEAL;		// As QUEUE, but follow-up tasks stay on the worker's own deque and idle workers steal
+	
+	public static DispatchMode parse(String name) {
+		for (DispatchMode mode : values()) {
+			if (mode.name().equalsIgnoreCase(name))
+				return mode;
+		}
+		throw new IllegalArgumentException("Unknown dispatch mode: " + name);
+	}
+}
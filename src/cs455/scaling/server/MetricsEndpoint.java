@@ -0,0 +1,266 @@
+package cs455.scaling.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+import cs455.util.BufferPool;
+import cs455.util.LatencyHistogram;
+import cs455.util.StatTracker;
+import cs455.util.StatTracker.Stage;
+
+// Serves a Prometheus-style plain-text snapshot of the server's counters and histograms over HTTP on
+// the admin port. In NIO mode the admin socket and its clients share the acceptor's selector with the
+// server socket and are handled in place, never reaching the worker pool. The virtual-thread and async
+// engines have no selector, so there the endpoint runs a small selector loop of its own.
+public class MetricsEndpoint implements Runnable {
+
+	private static final int MAX_REQUEST_BYTES = 8192;
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	private final int adminPort;
+	private final Server server;
+	private final boolean debug;
+	private ServerSocketChannel serverSocket;
+	private volatile Selector ownSelector;		// Set while run() drives a selector of its own
+
+	public MetricsEndpoint(int adminPort, Server server, boolean debug) {
+		this.adminPort = adminPort;
+		this.server = server;
+		this.debug = debug;
+	}
+
+	// Open the admin port and have the given selector watch it. Call before the selector's thread starts.
+	public void register(Selector selector) throws IOException {
+		serverSocket = ServerSocketChannel.open();
+		serverSocket.socket().setReuseAddress(true);
+		serverSocket.socket().bind(new InetSocketAddress(adminPort));
+		serverSocket.configureBlocking(false);
+		serverSocket.register(selector, SelectionKey.OP_ACCEPT, this);
+		if (debug) System.out.println(" Metrics endpoint listening on port " + adminPort);
+	}
+
+	// Selector loop for engines that have none to share
+	@Override
+	public void run() {
+		try (Selector selector = Selector.open()) {
+			register(selector);
+			ownSelector = selector;
+			while (serverSocket.isOpen()) {
+				selector.select();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					handle(key);
+				}
+			}
+		} catch (IOException e) {
+			System.out.println(e);
+		}
+	}
+
+	// Close the admin port. Scrapes already accepted are left to finish.
+	public void close() {
+		if (serverSocket == null)
+			return;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			System.out.println(e);
+		}
+		Selector selector = ownSelector;
+		if (selector != null)
+			selector.wakeup();
+	}
+	
+	// Whether a key belongs to the admin port rather than to a hashing client
+	static boolean owns(SelectionKey key) {
+		Object attachment = key.attachment();
+		return attachment instanceof MetricsEndpoint || attachment instanceof Session;
+	}
+
+	static void handle(SelectionKey key) {
+		if (!key.isValid())
+			return;
+		Object attachment = key.attachment();
+		if (attachment instanceof MetricsEndpoint)
+			((MetricsEndpoint) attachment).accept(key);
+		else
+			((Session) attachment).handle(key);
+	}
+
+	private void accept(SelectionKey key) {
+		try {
+			SocketChannel channel = serverSocket.accept();
+			if (channel == null)
+				return;
+			channel.configureBlocking(false);
+			channel.register(key.selector(), SelectionKey.OP_READ, new Session(channel));
+		} catch (IOException e) {
+			System.out.println(e);
+		}
+	}
+
+	// One scrape: read the request head, answer it, close
+	private class Session {
+
+		private final SocketChannel channel;
+		private final ByteBuffer request;
+		private ByteBuffer response;		// Null until the request head is complete
+
+		Session(SocketChannel channel) {
+			this.channel = channel;
+			this.request = ByteBuffer.allocate(MAX_REQUEST_BYTES);
+		}
+
+		void handle(SelectionKey key) {
+			try {
+				if (response == null) {
+					if (channel.read(request) < 0) {
+						close(key);
+						return;
+					}
+					String head = new String(request.array(), 0, request.position(), StandardCharsets.ISO_8859_1);
+					if (head.contains("\r\n\r\n") || head.contains("\n\n"))
+						response = respond(head);
+					else if (!request.hasRemaining())
+						response = encode("431 Request Header Fields Too Large", "Request too large\n");
+					else
+						return;
+					key.interestOps(SelectionKey.OP_WRITE);
+				}
+				channel.write(response);
+				if (!response.hasRemaining())
+					close(key);
+			} catch (IOException e) {
+				close(key);
+			}
+		}
+
+		private void close(SelectionKey key) {
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				System.out.println(e);
+			}
+		}
+	}
+
+	private ByteBuffer respond(String head) {
+		String[] requestLine = head.split("\r?\n", 2)[0].split(" ");
+		if (requestLine.length < 2 || !requestLine[0].equals("GET"))
+			return encode("405 Method Not Allowed", "Only GET is supported\n");
+		String path = requestLine[1];
+		if (!path.equals("/") && !path.equals("/metrics"))
+			return encode("404 Not Found", "Try /metrics\n");
+		return encode("200 OK", render());
+	}
+
+	private static ByteBuffer encode(String status, String body) {
+		byte[] content = body.getBytes(StandardCharsets.UTF_8);
+		String header = "HTTP/1.1 " + status + "\r\n"
+				+ "Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n"
+				+ "Content-Length: " + content.length + "\r\n"
+				+ "Connection: close\r\n\r\n";
+		byte[] head = header.getBytes(StandardCharsets.ISO_8859_1);
+		ByteBuffer response = ByteBuffer.allocate(head.length + content.length);
+		response.put(head).put(content).flip();
+		return response;
+	}
+
+	// Text exposition format. Counters are cumulative so a scraper can take its own rates; the
+	// per-second gauges repeat the figures from the last status line.
+	String render() {
+		StatTracker stats = server.getStatTracker();
+		StringBuilder out = new StringBuilder(8192);
+
+		metric(out, "hashserver_messages_read_total", "counter", "Requests read and hashed", stats.getReadCount());
+		metric(out, "hashserver_replies_written_total", "counter", "Replies handed to client connections", stats.getWriteCount());
+		metric(out, "hashserver_bytes_read_total", "counter", "Request bytes read from clients", stats.getBytesRead());
+		metric(out, "hashserver_bytes_written_total", "counter", "Reply bytes queued to clients", stats.getBytesWritten());
+		metric(out, "hashserver_write_calls_total", "counter", "Gathering write calls made for replies", stats.getWriteCallCount());
+		metric(out, "hashserver_connections", "gauge", "Open client connections", stats.getConnections());
+		metric(out, "hashserver_connection_timeouts_total", "counter", "Connections closed for going idle, stalling part way through a request or leaving replies unread", stats.getTimeoutCount());
+
+		StatTracker.Interval interval = server.getLastInterval();
+		if (interval != null) {
+			metric(out, "hashserver_throughput_messages_per_second", "gauge", "Messages per second over the last status interval", interval.getThroughput());
+			metric(out, "hashserver_bytes_in_per_second", "gauge", "Bytes read per second over the last status interval", interval.getKBPerSecondIn() * 1024);
+			metric(out, "hashserver_bytes_out_per_second", "gauge", "Bytes written per second over the last status interval", interval.getKBPerSecondOut() * 1024);
+		}
+
+		LatencyHistogram.Snapshot[] latencies = stats.getLatencyTotals();
+		out.append("# HELP hashserver_stage_latency_seconds Time spent in each pipeline stage since startup\n");
+		out.append("# TYPE hashserver_stage_latency_seconds summary\n");
+		for (Stage stage : Stage.values()) {
+			LatencyHistogram.Snapshot latency = latencies[stage.ordinal()];
+			String label = "stage=\"" + stage.name().toLowerCase() + "\"";
+			for (double quantile : QUANTILES)
+				out.append("hashserver_stage_latency_seconds{").append(label).append(",quantile=\"").append(quantile).append("\"} ").append(seconds(latency.getValueAtPercentile(quantile))).append('\n');
+			out.append("hashserver_stage_latency_seconds_sum{").append(label).append("} ").append(seconds(latency.getSum())).append('\n');
+			out.append("hashserver_stage_latency_seconds_count{").append(label).append("} ").append(latency.getCount()).append('\n');
+		}
+		out.append("# HELP hashserver_stage_latency_max_seconds Longest time spent in each pipeline stage since startup\n");
+		out.append("# TYPE hashserver_stage_latency_max_seconds gauge\n");
+		for (Stage stage : Stage.values())
+			out.append("hashserver_stage_latency_max_seconds{stage=\"").append(stage.name().toLowerCase()).append("\"} ").append(seconds(latencies[stage.ordinal()].getMax())).append('\n');
+
+		ThreadPoolManager tpManager = server.getThreadPoolManager();
+		if (tpManager != null) {
+			metric(out, "hashserver_task_queue_depth", "gauge", "Tasks waiting for a worker", tpManager.getPendingTaskCount());
+			metric(out, "hashserver_idle_workers", "gauge", "Worker threads with nothing to do", tpManager.getIdleThreadCount());
+			metric(out, "hashserver_active_workers", "gauge", "Worker threads the pool is currently sized to", tpManager.getActiveCount());
+		}
+		
+		AdmissionControl admission = server.getAdmissionControl();
+		if (admission != null) {
+			metric(out, "hashserver_pending_requests", "gauge", "Requests read and waiting to be hashed", admission.getPending());
+			metric(out, "hashserver_reads_paused", "gauge", "1 while reads are paused for backlog", admission.isPaused() ? 1 : 0);
+			metric(out, "hashserver_read_pauses_total", "counter", "Times the backlog reached its limit and reads were paused", admission.getPauseCount());
+			metric(out, "hashserver_parked_connections", "gauge", "Connections waiting for reads to resume", admission.getParkedCount());
+			metric(out, "hashserver_requests_shed_total", "counter", "Requests answered BUSY without being hashed", admission.getShedCount());
+		}
+
+		Reactor[] reactors = server.getSubReactors();
+		if (reactors != null) {
+			out.append("# HELP hashserver_reactor_connections Client connections registered with each reactor\n");
+			out.append("# TYPE hashserver_reactor_connections gauge\n");
+			for (int i = 0; i < reactors.length; i++)
+				out.append("hashserver_reactor_connections{reactor=\"").append(i).append("\"} ").append(reactors[i].getConnectionCount()).append('\n');
+		}
+
+		BufferPool bufferPool = server.getBufferPool();
+		metric(out, "hashserver_buffer_pool_hits_total", "counter", "Buffer acquisitions served from a cache or the shared list", bufferPool.getHits());
+		metric(out, "hashserver_buffer_pool_misses_total", "counter", "Buffer acquisitions that had to allocate a slab", bufferPool.getMisses());
+		metric(out, "hashserver_buffer_pool_outstanding", "gauge", "Pooled buffers currently in use", bufferPool.getOutstanding());
+		metric(out, "hashserver_buffer_pool_allocated_bytes", "gauge", "Direct memory held by buffer pool slabs", bufferPool.getAllocatedBytes());
+
+		DigestCache digestCache = server.getDigestCache();
+		if (digestCache != null) {
+			metric(out, "hashserver_digest_cache_hits_total", "counter", "Requests answered with a cached digest", digestCache.getHits());
+			metric(out, "hashserver_digest_cache_misses_total", "counter", "Cacheable requests that had to be hashed", digestCache.getMisses());
+			metric(out, "hashserver_digest_cache_evictions_total", "counter", "Entries evicted to make room", digestCache.getEvictions());
+			metric(out, "hashserver_digest_cache_entries", "gauge", "Digests currently cached", digestCache.getEntryCount());
+			metric(out, "hashserver_digest_cache_bytes", "gauge", "Approximate heap held by the digest cache", digestCache.getBytes());
+		}
+		return out.toString();
+	}
+
+	private static void metric(StringBuilder out, String name, String type, String help, long value) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+		out.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static String seconds(long nanos) {
+		return Double.toString(nanos / 1e9);
+	}
+}
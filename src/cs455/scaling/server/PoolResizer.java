@@ -0,0 +1,118 @@
+package cs455.scaling.server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.sql.Timestamp;
+
+import cs455.util.CommandLineOptions;
+import cs455.util.LatencyHistogram;
+import cs455.util.StatTracker;
+import cs455.util.StatTracker.Stage;
+
+// Adaptive pool sizing (--pool=adaptive). Once per interval it looks at the p90 queue wait and the
+// process's CPU load: tasks waiting longer than the target while no worker is idle and the CPU has room
+// means the pool is too small, so it grows by one; a queue wait well under the target with workers idle
+// means it is too big, so it shrinks by one. A signal has to hold for several intervals in a row before
+// anything changes, and shrinking needs a longer streak than growing, so a brief spike or lull does
+// not set the pool thrashing. Every decision is printed.
+public class PoolResizer implements Runnable {
+
+	private static final int GROW_AFTER = 2;		// Intervals in a row that must call for growth
+	private static final int SHRINK_AFTER = 5;		// Intervals in a row that must call for shrinking
+
+	private final ThreadPoolManager tpManager;
+	private final StatTracker statTracker;
+	private final int minThreads;
+	private final int maxThreads;
+	private final long targetQueueWaitNanos;		// p90 queue wait above this asks for more workers
+	private final long intervalMillis;
+	private final double cpuCeiling;				// No growth while process CPU load is at or above this
+	private final com.sun.management.OperatingSystemMXBean osBean;	// Null when the JVM does not offer CPU load
+	private final boolean debug;
+	private int growStreak;
+	private int shrinkStreak;
+
+	public PoolResizer(ThreadPoolManager tpManager, StatTracker statTracker, int minThreads, CommandLineOptions options, boolean debug) {
+		this.tpManager = tpManager;
+		this.statTracker = statTracker;
+		this.minThreads = minThreads;
+		this.maxThreads = tpManager.getMaxPoolSize();
+		this.targetQueueWaitNanos = options.getLong("target-queue-wait-us", 1000) * 1000L;
+		this.intervalMillis = options.getLong("resize-interval-ms", 1000);
+		this.cpuCeiling = options.getDouble("cpu-ceiling", 0.9);
+		if (targetQueueWaitNanos <= 0 || intervalMillis <= 0 || cpuCeiling <= 0)
+			throw new IllegalArgumentException("--target-queue-wait-us, --resize-interval-ms and --cpu-ceiling must be positive");
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		this.osBean = (os instanceof com.sun.management.OperatingSystemMXBean) ? (com.sun.management.OperatingSystemMXBean) os : null;
+		this.debug = debug;
+	}
+
+	@Override
+	public void run() {
+		log("Adaptive pool sizing between " + minThreads + " and " + maxThreads + " workers, target p90 queue wait " + format(targetQueueWaitNanos) + " ms, CPU ceiling "
+				+ Math.round(cpuCeiling * 100) + "%");
+		LatencyHistogram.Snapshot previous = queueWaitTotal();
+		if (osBean != null)
+			osBean.getProcessCpuLoad();		// The first reading only starts the measurement
+		while (true) {
+			try {
+				Thread.sleep(intervalMillis);
+			} catch (InterruptedException e) {
+				return;
+			}
+			LatencyHistogram.Snapshot current = queueWaitTotal();
+			adjust(current.since(previous));
+			previous = current;
+		}
+	}
+
+	private LatencyHistogram.Snapshot queueWaitTotal() {
+		return statTracker.getLatencyTotals()[Stage.QUEUE_WAIT.ordinal()];
+	}
+
+	private void adjust(LatencyHistogram.Snapshot queueWait) {
+		int active = tpManager.getActiveCount();
+		long p90 = queueWait.getValueAtPercentile(0.90);
+		double cpu = (osBean == null) ? -1 : osBean.getProcessCpuLoad();
+		int idle = tpManager.getIdleThreadCount();
+		String reading = "p90 queue wait " + format(p90) + " ms over " + queueWait.getCount() + " tasks, " + idle + " idle, CPU " + (cpu < 0 ? "n/a" : Math.round(cpu * 100) + "%");
+		if (debug) System.out.println("Pool resizer: " + active + " workers, " + reading);
+
+		boolean wantsGrowth = p90 > targetQueueWaitNanos && idle == 0;
+		boolean wantsShrink = p90 < targetQueueWaitNanos / 4 && idle > 0;
+		growStreak = wantsGrowth ? growStreak + 1 : 0;
+		shrinkStreak = wantsShrink ? shrinkStreak + 1 : 0;
+
+		if (growStreak >= GROW_AFTER) {
+			growStreak = 0;
+			if (active >= maxThreads)
+				log("Pool held at " + active + " workers, already at the maximum: " + reading);
+			else if (cpu >= cpuCeiling)
+				log("Pool held at " + active + " workers, CPU is at the ceiling: " + reading);
+			else
+				resize(active, active + 1, reading);
+		}
+		else if (shrinkStreak >= SHRINK_AFTER) {
+			shrinkStreak = 0;
+			if (active > minThreads)
+				resize(active, active - 1, reading);
+		}
+	}
+
+	private void resize(int from, int to, String reason) {
+		tpManager.resize(to);
+		log("Pool resized from " + from + " to " + to + " workers: " + reason);
+	}
+
+	private static void log(String message) {
+		System.out.println(new Timestamp(System.currentTimeMillis()) + "\t" + message);
+	}
+
+	private static String format(long nanos) {
+		return String.format("%.2f", nanos / 1e6);
+	}
+
+	public static String usage() {
+		return "[--pool=fixed|adaptive] [--min-threads=<n>] [--max-threads=<n>] [--target-queue-wait-us=<us>] [--resize-interval-ms=<ms>] [--cpu-ceiling=<fraction>]";
+	}
+}
@@ -0,0 +1,293 @@
+package cs455.scaling.server;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cs455.scaling.server.tasks.AcceptIncomingTrafficTask;
+import cs455.util.BufferPool;
+import cs455.util.ParallelHashing;
+import cs455.util.StatTracker;
+import cs455.util.TimingWheel;
+
+// Selector loop that watches a set of client channels and feeds read tasks to the thread pool.
+// The server runs one of these on its main thread; that one also owns the server socket and hands
+// accepted channels either to itself or, in multi-reactor mode, to one of the sub-reactors.
+public class Reactor implements Runnable {
+	
+	private static final long SELECT_TIMEOUT_MS = 1000;		// Upper bound on how long a status line can be late
+	private static final long DEFERRED_READ_RETRY_MS = 1;		// How often to retry reads turned away by a full work queue
+	static final long DEADLINE_TICK_NANOS = 100000000L;			// Timeouts fire up to this much late
+	static final int DEADLINE_SLOTS = 512;						// One turn of the timing wheel is 51.2 seconds
+	
+	private final int reactorID;
+	private final Server server;
+	private final Selector selector;
+	private final ThreadPoolManager tpManager;
+	private final StatTracker statTracker;
+	private final BufferPool bufferPool;
+	private final AdmissionControl admission;
+	private final DigestCache digestCache;
+	private final ParallelHashing parallelHashing;
+	private final ConnectionConfig connectionConfig;
+	private final boolean debug;
+	private final ConcurrentLinkedQueue<SocketChannel> pendingRegistrations;	// Channels accepted on another thread
+	private final ConcurrentLinkedQueue<Connection> pendingOps;				// Connections with interest ops to re-arm
+	private final ConcurrentLinkedQueue<Connection> pendingFlushes;			// Connections that started a write linger
+	private final ArrayList<Connection> lingering;							// Reactor thread only: flushes not yet due
+	private final ArrayDeque<AcceptIncomingTrafficTask> deferredReads;		// Reactor thread only: read tasks the full work queue turned away
+	private final AtomicInteger connectionCount;
+	private final Set<Connection> connections;								// Live connections, for per-connection stats
+	private final TimingWheel<Connection> deadlines;						// Reactor thread only: next timeout check per connection, null with no timeouts
+	private final ArrayList<Connection> due;								// Reactor thread only: connections the wheel has just brought up
+	private volatile Thread reactorThread;
+	private volatile boolean shutDown;
+	
+	public Reactor(int reactorID, Server server, ThreadPoolManager tpManager, StatTracker statTracker, BufferPool bufferPool, AdmissionControl admission, DigestCache digestCache, ParallelHashing parallelHashing, ConnectionConfig connectionConfig, boolean debug) throws IOException {
+		this.reactorID = reactorID;
+		this.server = server;
+		this.selector = Selector.open();
+		this.tpManager = tpManager;
+		this.statTracker = statTracker;
+		this.bufferPool = bufferPool;
+		this.admission = admission;
+		this.digestCache = digestCache;
+		this.parallelHashing = parallelHashing;
+		this.connectionConfig = connectionConfig;
+		this.debug = debug;
+		this.pendingRegistrations = new ConcurrentLinkedQueue<SocketChannel>();
+		this.pendingOps = new ConcurrentLinkedQueue<Connection>();
+		this.pendingFlushes = new ConcurrentLinkedQueue<Connection>();
+		this.lingering = new ArrayList<Connection>();
+		this.deferredReads = new ArrayDeque<AcceptIncomingTrafficTask>();
+		this.connectionCount = new AtomicInteger();
+		this.connections = ConcurrentHashMap.newKeySet();
+		this.deadlines = connectionConfig.hasTimeouts() ? new TimingWheel<Connection>(DEADLINE_TICK_NANOS, DEADLINE_SLOTS, System.nanoTime()) : null;
+		this.due = new ArrayList<Connection>();
+		this.shutDown = false;
+	}
+
+	@Override
+	public void run() {
+		reactorThread = Thread.currentThread();
+		if (debug) System.out.println("Reactor " + reactorID + " started.");
+		while (!shutDown) {
+			try {
+				server.printStatusIfDue(this);
+				long timeout = Math.min(lingerTimeout(), deadlineTimeout());
+				if (!deferredReads.isEmpty())
+					timeout = Math.min(timeout, DEFERRED_READ_RETRY_MS);
+				if (timeout > 0)
+					selector.select(timeout);
+				else
+					selector.selectNow();
+				registerPendingChannels();
+				applyPendingOps();
+				flushLingering();
+				checkDeadlines();
+				retryDeferredReads();
+				
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					
+					// Iterate through available keys to check for incoming data
+					SelectionKey key = keys.next();
+					keys.remove();
+					try {
+						processKey(key);
+					} catch (CancelledKeyException e) {
+						// Closed by a worker while we were looking at it
+					}
+				}
+			} catch (IOException e) {
+				System.out.println(e);
+			}
+		}
+		for (Connection connection : connections)
+			connection.close();
+		try {
+			selector.close();
+		} catch (IOException e) {
+			System.out.println(e);
+		}
+		if (debug) System.out.println("Reactor " + reactorID + " stopped.");
+	}
+	
+	// Stop the selector loop and close this reactor's connections. Safe to call from any thread.
+	public void shutdown() {
+		shutDown = true;
+		selector.wakeup();
+	}
+	
+	private void processKey(SelectionKey key) throws IOException {
+		if (!key.isValid())
+			return;
+		if (MetricsEndpoint.owns(key)) {
+			MetricsEndpoint.handle(key);
+			return;
+		}
+		if (key.isAcceptable()) {
+			server.accept(key);
+			return;
+		}
+		Connection connection = (Connection) key.attachment();
+		if (key.isReadable()) {
+			if (admission.isPaused())
+				connection.pauseReads();
+			else if (connection.beginRead())
+				submitRead(new AcceptIncomingTrafficTask(key));
+		}
+		if (key.isValid() && key.isWritable()) {
+			try {
+				connection.flush();
+			} catch (IOException e) {
+				connection.close();
+			}
+		}
+	}
+	
+	// The connection's OP_READ is already off, so a read the work queue has no room for simply waits
+	// here, in arrival order, and the client's data stays in the socket until a worker catches up
+	private void submitRead(AcceptIncomingTrafficTask task) {
+		if (!deferredReads.isEmpty() || !tpManager.enqueueTask(task))
+			deferredReads.add(task);
+	}
+	
+	private void retryDeferredReads() {
+		while (!deferredReads.isEmpty() && tpManager.enqueueTask(deferredReads.peekFirst()))
+			deferredReads.pollFirst();
+	}
+	
+	// Ask the reactor to re-arm a connection's interest ops. Safe to call from any thread.
+	void requestInterestOps(Connection connection) {
+		pendingOps.add(connection);
+		if (Thread.currentThread() != reactorThread)
+			selector.wakeup();
+	}
+	
+	private void applyPendingOps() {
+		Connection connection;
+		while ((connection = pendingOps.poll()) != null) {
+			try {
+				connection.applyRequestedOps();
+			} catch (CancelledKeyException e) {
+				// Closed since the request was made
+			}
+		}
+	}
+	
+	// Ask the reactor to flush a connection once its write linger is over. Safe to call from any thread.
+	void scheduleFlush(Connection connection) {
+		pendingFlushes.add(connection);
+		if (Thread.currentThread() != reactorThread)
+			selector.wakeup();
+	}
+	
+	// How long select may block without making a lingering flush late. Selectors count in milliseconds,
+	// so a flush due within the next millisecond is waited out with non-blocking selects.
+	private long lingerTimeout() {
+		Connection connection;
+		while ((connection = pendingFlushes.poll()) != null)
+			lingering.add(connection);
+		if (lingering.isEmpty())
+			return SELECT_TIMEOUT_MS;
+		long now = System.nanoTime();
+		long earliest = Long.MAX_VALUE;
+		for (Connection pending : lingering)
+			earliest = Math.min(earliest, pending.flushDeadline - now);
+		return Math.min(SELECT_TIMEOUT_MS, Math.max(0, earliest / 1000000L));
+	}
+	
+	private void flushLingering() {
+		if (lingering.isEmpty())
+			return;
+		long now = System.nanoTime();
+		Iterator<Connection> due = lingering.iterator();
+		while (due.hasNext()) {
+			Connection connection = due.next();
+			if (connection.flushDeadline - now > 0)
+				continue;
+			due.remove();
+			try {
+				connection.lingerExpired();
+			} catch (IOException e) {
+				connection.close();
+			}
+		}
+	}
+	
+	// How long select may block before the timing wheel's next tick is due
+	private long deadlineTimeout() {
+		if (deadlines == null || deadlines.size() == 0)
+			return SELECT_TIMEOUT_MS;
+		return (deadlines.nanosUntilNextTick(System.nanoTime()) + 999999L) / 1000000L;
+	}
+	
+	// Close connections whose deadline has passed and put the rest back on the wheel. A connection
+	// closed elsewhere drops off the wheel the next time it comes up.
+	private void checkDeadlines() {
+		if (deadlines == null)
+			return;
+		long now = System.nanoTime();
+		deadlines.advance(now, due);
+		for (Connection connection : due) {
+			long next = connection.checkDeadlines(now);
+			if (next != -1)
+				deadlines.schedule(connection.deadlineEntry, next);
+		}
+		due.clear();
+	}
+	
+	void connectionClosed(Connection connection) {
+		connections.remove(connection);
+		connectionCount.decrementAndGet();
+	}
+	
+	// Hand a freshly accepted channel to this reactor. Safe to call from any thread.
+	public void register(SocketChannel channel) {
+		connectionCount.incrementAndGet();
+		pendingRegistrations.add(channel);
+		if (Thread.currentThread() != reactorThread)
+			selector.wakeup();
+	}
+	
+	private void registerPendingChannels() {
+		SocketChannel channel;
+		while ((channel = pendingRegistrations.poll()) != null) {
+			try {
+				// OP_WRITE is only switched on when a reply could not be written in full
+				SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+				Connection connection = new Connection(channel, key, this, statTracker, bufferPool, admission, digestCache, parallelHashing, connectionConfig);
+				key.attach(connection);
+				connections.add(connection);
+				if (deadlines != null)
+					deadlines.schedule(connection.deadlineEntry, connection.checkDeadlines(System.nanoTime()));
+				if (debug) System.out.println("Incoming connection registered with reactor " + reactorID);
+			} catch (ClosedChannelException e) {
+				connectionCount.decrementAndGet();
+			}
+		}
+	}
+	
+	public Selector getSelector() {
+		return selector;
+	}
+	
+	public Set<Connection> getConnections() {
+		return connections;
+	}
+	
+	public int getConnectionCount() {
+		return connectionCount.get();
+	}
+}
@@ -0,0 +1,55 @@
+package cs455.scaling.server;
+
+import java.nio.ByteBuffer;
+
+import cs455.message.Protocol;
+import cs455.util.DigestAlgorithm;
+import cs455.util.DigestAlgorithms;
+import cs455.util.ParallelHashing;
+
+// Hashes a request payload and encodes the reply frame. Shared by every server engine.
+public class ReplyBuilder {
+	
+	// Returns a reply frame ready to be written, the payload is consumed. The digest comes from the
+	// cache when one is given and already holds this payload; otherwise it is computed, on the parallel
+	// hashing threads when given and the algorithm can use them, and cached.
+	public static ByteBuffer build(DigestCache cache, ParallelHashing parallel, byte algorithm, int requestID, ByteBuffer payload) {
+		DigestAlgorithm digest = DigestAlgorithms.forId(algorithm);
+		ByteBuffer reply;
+		if (digest == null) {
+			reply = ByteBuffer.allocate(Protocol.REPLY_HEADER_LENGTH);
+			Protocol.writeReplyHeader(reply, algorithm, requestID, Protocol.STATUS_BAD_REQUEST, 0);
+		}
+		else {
+			int digestLength = digest.getLength();
+			reply = ByteBuffer.allocate(Protocol.REPLY_HEADER_LENGTH + digestLength);
+			Protocol.writeReplyHeader(reply, algorithm, requestID, Protocol.STATUS_OK, digestLength);
+			if (cache == null)
+				digest.digest(payload, reply.array(), Protocol.REPLY_HEADER_LENGTH, parallel);
+			else if (!cache.lookup(algorithm, payload, reply.array(), Protocol.REPLY_HEADER_LENGTH)) {
+				digest.digest(payload.duplicate(), reply.array(), Protocol.REPLY_HEADER_LENGTH, parallel);
+				cache.store(algorithm, payload, reply.array(), Protocol.REPLY_HEADER_LENGTH, digestLength);
+			}
+			payload.position(payload.limit());
+		}
+		reply.rewind();
+		return reply;
+	}
+	
+	// Returns a reply frame carrying the digest of everything fed to a running digest, which starts over
+	public static ByteBuffer finish(DigestAlgorithm digest, DigestAlgorithm.Incremental running, int requestID) {
+		ByteBuffer reply = ByteBuffer.allocate(Protocol.REPLY_HEADER_LENGTH + digest.getLength());
+		Protocol.writeReplyHeader(reply, digest.getId(), requestID, Protocol.STATUS_OK, digest.getLength());
+		running.finish(reply.array(), Protocol.REPLY_HEADER_LENGTH);
+		reply.rewind();
+		return reply;
+	}
+	
+	// Reply for a request the server was too busy to hash
+	public static ByteBuffer busy(byte algorithm, int requestID) {
+		ByteBuffer reply = ByteBuffer.allocate(Protocol.REPLY_HEADER_LENGTH);
+		Protocol.writeReplyHeader(reply, algorithm, requestID, Protocol.STATUS_BUSY, 0);
+		reply.rewind();
+		return reply;
+	}
+}
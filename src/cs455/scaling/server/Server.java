@@ -3,41 +3,86 @@ package cs455.scaling.server;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.sql.Timestamp;
 import java.util.Calendar;
-import java.util.Iterator;
 
+import cs455.message.HashMessage;
 import cs455.scaling.Node;
-import cs455.scaling.server.tasks.AcceptIncomingTrafficTask;
-import cs455.scaling.server.tasks.ReplyToClientTask;
+import cs455.util.BufferPool;
+import cs455.util.CommandLineOptions;
+import cs455.util.LatencyHistogram;
+import cs455.util.ParallelHashing;
 import cs455.util.StatTracker;
+import cs455.util.StatTracker.Stage;
 
 public class Server implements Node {
 
 	private final int serverPort;					// Port through which clients will connect to server
+	private final ServerEngine engine;				// Reactors and worker pool, or a thread per connection
 	private final int threadPoolSize;				// Fixed size of server thread pool
 	private final ThreadPoolManager tpManager;		// Thread pool manager object
 	private final Thread tpManagerThread;			// Thread pool manager thread
-	private Selector selector;						// Server selector to monitor open channels
+	private final PoolResizer poolResizer;			// Grows and shrinks the pool with --pool=adaptive, null for a fixed pool
+	private Thread poolResizerThread;
+	private final int subReactorCount;				// Number of sub-reactor selector threads, 0 runs everything on one selector
+	private final boolean leastConnections;			// Shard new connections by least-connections instead of round-robin
+	private Reactor acceptor;						// Main thread selector, owns the server socket
+	private Reactor[] subReactors;					// Reactors that client channels are registered with
+	private int nextReactor;						// Round-robin cursor into subReactors
 	private StatTracker statTracker;				// Maintain throughput and connection stats
-	private boolean shutDown;						// Shut down switch
+	private final BufferPool bufferPool;			// Direct buffers that incoming messages are read into
+	private final AdmissionControl admission;		// Backlog limit and overload policy for the NIO engine
+	private final DigestCache digestCache;			// Digests of repeated payloads, null when not enabled
+	private final ParallelHashing parallelHashing;	// Threads that large tree digests are split over
+	private final ConnectionConfig connectionConfig;	// Framing and write batching settings for client connections
+	private long statusStart;						// Start of the current 5 second status window
+	private volatile StatTracker.Interval lastInterval;	// Figures behind the last status line, for the metrics endpoint
+	private final MetricsEndpoint metricsEndpoint;	// Admin port serving metrics, null when not enabled
+	private final boolean quiet;					// Keep the figures for the metrics endpoint but print no status lines
+	private ServerSocketChannel serverSocketChannel;
+	private VirtualThreadEngine virtualThreadEngine;
+	private AsyncEngine asyncEngine;
+	private Thread statusThread;					// VIRTUAL and ASYNC engines: prints the status lines
+	private volatile int boundPort;
 	
-	private Server(int serverPort, int threadPoolSize) {
+	public Server(int serverPort, int threadPoolSize, CommandLineOptions options) {
 		this.serverPort = serverPort;
 		this.threadPoolSize = threadPoolSize;
+		this.engine = ServerEngine.parse(options.getString("engine", "nio"));
 		this.statTracker = new StatTracker();
-		this.tpManager = new ThreadPoolManager(this.threadPoolSize, this.statTracker, debug);
+		this.connectionConfig = new ConnectionConfig(options);
+		this.admission = new AdmissionControl(options);
+		this.digestCache = DigestCache.fromOptions(options);
+		this.parallelHashing = ParallelHashing.fromOptions(options);
+		this.bufferPool = new BufferPool(HashMessage.DEFAULT_PAYLOAD_SIZE, options.getInt("buffers-per-slab", 64), options.getInt("buffer-cache", 16));
+		DispatchMode dispatchMode = DispatchMode.parse(options.getString("dispatch", "managed"));
+		int queueCapacity = options.getInt("queue-capacity", 65536);
+		String pool = options.getString("pool", "fixed");
+		if (!pool.equals("fixed") && !pool.equals("adaptive"))
+			throw new IllegalArgumentException("Unknown pool sizing: " + pool);
+		boolean adaptive = pool.equals("adaptive");
+		int minThreads = adaptive ? options.getInt("min-threads", 1) : threadPoolSize;
+		int maxThreads = adaptive ? options.getInt("max-threads", Math.max(threadPoolSize, 2 * Runtime.getRuntime().availableProcessors())) : threadPoolSize;
+		if (minThreads < 1 || minThreads > threadPoolSize || threadPoolSize > maxThreads)
+			throw new IllegalArgumentException("Need 1 <= --min-threads <= thread-pool-size <= --max-threads");
+		this.tpManager = new ThreadPoolManager(this.threadPoolSize, maxThreads, this.statTracker, debug, dispatchMode, queueCapacity);
 		this.tpManagerThread = new Thread(this.tpManager);
-		this.shutDown = false;
+		this.poolResizer = adaptive ? new PoolResizer(tpManager, statTracker, minThreads, options, debug) : null;
+		this.subReactorCount = options.getInt("reactors", 0);
+		String balance = options.getString("balance", "round-robin");
+		if (!balance.equals("round-robin") && !balance.equals("least-connections"))
+			throw new IllegalArgumentException("Unknown balance policy: " + balance);
+		this.leastConnections = balance.equals("least-connections");
+		this.nextReactor = 0;
+		int adminPort = options.getInt("admin-port", 0);
+		this.metricsEndpoint = (adminPort > 0) ? new MetricsEndpoint(adminPort, this, debug) : null;
+		this.quiet = options.getBoolean("quiet", false);
 	}
 	
 	public static void main(String[] args) throws IOException {
 		
-		long start = System.nanoTime();
-		
 		// Check arguments
 		if (args.length < 2) {
 			System.out.println(usage());
@@ -45,114 +90,278 @@ public class Server implements Node {
 		}
 		
 		// Instantiate a server
-		Server server = new Server(Integer.parseInt(args[0]), Integer.parseInt(args[1]));
+		Server server = null;
+		try {
+			server = new Server(Integer.parseInt(args[0]), Integer.parseInt(args[1]), new CommandLineOptions(args, 2));
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			System.out.println(usage());
+			System.exit(0);
+		}
 		
-		System.out.println("New server initialized.\tPort: " + server.serverPort + "\tThread Pool Size: " + server.threadPoolSize);
+		// Dump the latency histograms on the way out, whether by Ctrl-C or a kill
+		Runtime.getRuntime().addShutdownHook(new Thread(server::printLatencyTotals, "latency-dump"));
+		server.start();
+	}
+	
+	// Bind the server socket and start the engine's threads. Returns once the server is accepting, so a
+	// benchmark can start one in-process on port 0 and connect to getPort().
+	public void start() throws IOException {
+		if (engine == ServerEngine.VIRTUAL) {
+			virtualThreadEngine = new VirtualThreadEngine(serverPort, statTracker, bufferPool, connectionConfig, digestCache, parallelHashing, debug);
+			boundPort = virtualThreadEngine.bind();
+			if (!quiet) System.out.println("New server initialized.\tPort: " + boundPort + "\tEngine: " + engine);
+			startWithoutReactors();
+			new Thread(virtualThreadEngine, "acceptor").start();
+			return;
+		}
+		if (engine == ServerEngine.ASYNC) {
+			asyncEngine = new AsyncEngine(serverPort, threadPoolSize, statTracker, bufferPool, connectionConfig, digestCache, parallelHashing, debug);
+			boundPort = asyncEngine.start();
+			if (!quiet) System.out.println("New server initialized.\tPort: " + boundPort + "\tEngine: " + engine + "\tThread Pool Size: " + threadPoolSize);
+			startWithoutReactors();
+			return;
+		}
 		
-		// Open selector
-		server.selector = Selector.open();
+		// Open the acceptor's selector
+		acceptor = new Reactor(0, this, tpManager, statTracker, bufferPool, admission, digestCache, parallelHashing, connectionConfig, debug);
 		
 		// Configure a Server Socket channel
-		ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
-		serverSocketChannel.socket().bind(new InetSocketAddress(server.serverPort));
-        serverSocketChannel.configureBlocking(false);
-        serverSocketChannel.register(server.selector, SelectionKey.OP_ACCEPT);
-        
-		if (debug) System.out.println(" Server socket channel opened.\n\tAddress: " + serverSocketChannel.socket().getInetAddress() + "\n\tPort: " + serverSocketChannel.socket().getLocalPort());
+		serverSocketChannel = ServerSocketChannel.open();
+		serverSocketChannel.socket().bind(new InetSocketAddress(serverPort));
+		serverSocketChannel.configureBlocking(false);
+		serverSocketChannel.register(acceptor.getSelector(), SelectionKey.OP_ACCEPT);
+		boundPort = serverSocketChannel.socket().getLocalPort();
+		if (!quiet) System.out.println("New server initialized.\tPort: " + boundPort + "\tThread Pool Size: " + threadPoolSize + "\tDispatch: " + tpManager.getDispatchMode() + "\tSub-reactors: " + subReactorCount);
+		
+		// The admin port shares the acceptor's selector
+		if (metricsEndpoint != null)
+			metricsEndpoint.register(acceptor.getSelector());
+		
+		if (debug) System.out.println(" Server socket channel opened.\n\tAddress: " + serverSocketChannel.socket().getInetAddress() + "\n\tPort: " + boundPort);
 		if (debug) System.out.println(" Server socket channel waiting for incoming connections...");
 		
 		// Execute the thread pool manager thread
-		server.tpManagerThread.start();
+		tpManagerThread.start();
+		if (poolResizer != null) {
+			poolResizerThread = new Thread(poolResizer, "pool-resizer");
+			poolResizerThread.start();
+		}
 		
-		while (!server.shutDown) {
-			// Print out server statistics every 5 seconds
-			if (System.nanoTime() - start >= (5000000000L)) {
-				Calendar calendar = Calendar.getInstance();
-				Timestamp currentTimestamp = new java.sql.Timestamp(calendar.getTime().getTime());
-				int throughput = (server.statTracker.getThroughput() / 5);
-				System.out.println(currentTimestamp + "\t   Current Server Throughput: " + throughput + " messages/s,\tActive Client Connections: " + server.statTracker.getConnections() + "\tIdle thread count: " + server.tpManager.idleThreadCount + "\tTask queue size: " + server.tpManager.pendingTaskCount);
-				start = System.nanoTime();
-				server.statTracker.resetRW();
+		// Start the sub-reactors, or keep client channels on the acceptor's own selector
+		if (subReactorCount > 0) {
+			subReactors = new Reactor[subReactorCount];
+			for (int i = 0; i < subReactorCount; i++) {
+				subReactors[i] = new Reactor(i + 1, this, tpManager, statTracker, bufferPool, admission, digestCache, parallelHashing, connectionConfig, debug);
+				new Thread(subReactors[i], "reactor-" + (i + 1)).start();
 			}
-			
-			//if (debug) System.out.println(" Server selector waiting for new incoming connections...");
-			
-			server.selector.select();
-			
-			//if (debug) System.out.println(" Server selector connected...");
-
-			Iterator<SelectionKey> keys = server.selector.selectedKeys().iterator();
-			
-			//if (debug) System.out.println(" Server selector has new keys...");
-			
-			while (keys.hasNext()) {
-				
-				// Iterate through available keys to check for incoming data
-				SelectionKey key = (SelectionKey) keys.next();
-				if (key.isAcceptable()) {
-					//if (debug) System.out.println(" Connection accepted by server socket channel...");
-					server.accept(key);
-					server.statTracker.incrementConnections();
-				}
-				if (key.isReadable()){
-					//if (debug) System.out.println(" Key readable...");
-					if (key.attachment() == null) {
-						//if (debug) System.out.println(" Channel ready for reading...");
-						AcceptIncomingTrafficTask readTask = new AcceptIncomingTrafficTask(key);
-						//if (debug) System.out.println(" Passing new read task to thread pool manager...");
-						server.tpManager.enqueueTask(readTask);
-						key.attach(System.nanoTime());
-					}
-				}
-				if (key.isWritable()) {
-					//if (debug) System.out.println(" Key writable...");
-					/*synchronized(key){
-						server.checkComm(key);
-					}*/
-					if (key.attachment() == null) {
-						//if (debug) System.out.println(" Channel ready for writing...");
-					}
-				}
-				if (key.attachment() == null)
-					keys.remove();
+		}
+		else {
+			subReactors = new Reactor[] { acceptor };
+		}
+		
+		statusStart = System.nanoTime();
+		new Thread(acceptor, "acceptor").start();
+	}
+	
+	// Stop accepting, close every client connection and stop the engine's threads
+	public void stop() {
+		if (metricsEndpoint != null)
+			metricsEndpoint.close();
+		parallelHashing.shutdown();
+		if (engine == ServerEngine.VIRTUAL) {
+			virtualThreadEngine.shutdown();
+			statusThread.interrupt();
+			return;
+		}
+		if (engine == ServerEngine.ASYNC) {
+			asyncEngine.shutdown();
+			statusThread.interrupt();
+			return;
+		}
+		try {
+			serverSocketChannel.close();
+		} catch (IOException e) {
+			System.out.println(e);
+		}
+		for (Reactor reactor : subReactors)
+			reactor.shutdown();
+		if (acceptor != subReactors[0])
+			acceptor.shutdown();
+		if (poolResizerThread != null)
+			poolResizerThread.interrupt();
+		tpManager.shutdown();
+	}
+	
+	// The port clients connect to, which the system picks when the server was given port 0
+	public int getPort() {
+		return boundPort;
+	}
+	
+	// Engines without an acceptor selector give the metrics endpoint and the status lines threads of their own
+	private void startWithoutReactors() {
+		if (metricsEndpoint != null)
+			new Thread(metricsEndpoint, "admin").start();
+		statusThread = new Thread(this::runStatusLoop, "status");
+		statusThread.start();
+	}
+	
+	private void runStatusLoop() {
+		statusStart = System.nanoTime();
+		while (true) {
+			try {
+				Thread.sleep(Math.max(1, (statusStart + 5000000000L - System.nanoTime()) / 1000000L));
+			} catch (InterruptedException e) {
+				return;
 			}
+			printStatus();
+		}
+	}
+	
+	// Print out server statistics every 5 seconds. Only the acceptor's thread prints.
+	void printStatusIfDue(Reactor reactor) {
+		if (reactor != acceptor || System.nanoTime() - statusStart < 5000000000L)
+			return;
+		printStatus();
+	}
+	
+	private void printStatus() {
+		Calendar calendar = Calendar.getInstance();
+		Timestamp currentTimestamp = new java.sql.Timestamp(calendar.getTime().getTime());
+		StatTracker.Interval interval = statTracker.snapshot();
+		lastInterval = interval;
+		statusStart = System.nanoTime();
+		if (quiet)
+			return;
+		String status = currentTimestamp + "\t   Current Server Throughput: " + interval.getThroughput() + " messages/s, " + interval.getKBPerSecondIn() + " KB/s in, " + interval.getKBPerSecondOut() + " KB/s out,\tActive Client Connections: " + interval.connections;
+		if (engine == ServerEngine.NIO)
+			status += (poolResizer != null ? "\tActive workers: " + tpManager.getActiveCount() + "/" + tpManager.getMaxPoolSize() : "") + "\tIdle thread count: " + tpManager.getIdleThreadCount() + "\tTask queue size: " + tpManager.getPendingTaskCount() + "\t" + admission.getStats();
+		if (engine == ServerEngine.NIO && tpManager.getDispatchMode() == DispatchMode.STEAL)
+			status += "\t" + tpManager.getStealStats();
+		if (subReactorCount > 0) {
+			status += "\tReactor connections:";
+			for (Reactor subReactor : subReactors)
+				status += " " + subReactor.getConnectionCount();
 		}
+		if (engine == ServerEngine.NIO)
+			status += "\t" + perConnectionStats(interval.getSeconds());
+		status += "\tLatency p50/p99/p999/max us:" + latencyStats(interval);
+		status += "\t" + bufferPool.getStats();
+		if (digestCache != null)
+			status += "\t" + digestCache.getStats();
+		if (connectionConfig.hasTimeouts())
+			status += "\tTimed out connections: " + statTracker.getTimeoutCount();
+		status += "\tReplies per write: " + String.format("%.2f", interval.getRepliesPerWrite()) + " (max " + interval.largestBatch + ")\tWrite calls saved: " + interval.getWriteCallsSaved();
+		System.out.println(status);
 	}
 	
-	// When a key is acceptable, accept the client channel and register it with server selector for monitoring
-	private void accept(SelectionKey key) throws IOException {
+	StatTracker getStatTracker() {
+		return statTracker;
+	}
+	
+	StatTracker.Interval getLastInterval() {
+		return lastInterval;
+	}
+	
+	// Null unless the NIO engine is running
+	ThreadPoolManager getThreadPoolManager() {
+		return (engine == ServerEngine.NIO) ? tpManager : null;
+	}
+	
+	// Null unless the NIO engine is running
+	Reactor[] getSubReactors() {
+		return subReactors;
+	}
+	
+	BufferPool getBufferPool() {
+		return bufferPool;
+	}
+	
+	// Null when not enabled
+	DigestCache getDigestCache() {
+		return digestCache;
+	}
+	
+	// Null unless the NIO engine is running; the others read one request per connection at a time anyway
+	AdmissionControl getAdmissionControl() {
+		return (engine == ServerEngine.NIO) ? admission : null;
+	}
+	
+	// Per-stage latencies over the last interval. Stages the engine does not have are left out.
+	private static String latencyStats(StatTracker.Interval interval) {
+		String stats = "";
+		for (Stage stage : Stage.values()) {
+			LatencyHistogram.Snapshot latency = interval.getLatency(stage);
+			if (latency.getCount() > 0)
+				stats += " " + stage.name().toLowerCase() + " " + latency;
+		}
+		return stats.isEmpty() ? " n/a" : stats;
+	}
+	
+	// Latency table covering the whole run
+	private void printLatencyTotals() {
+		LatencyHistogram.Snapshot[] totals = statTracker.getLatencyTotals();
+		System.out.println("Latency since startup (microseconds):");
+		System.out.println(String.format("  %-12s %12s %10s %10s %10s %10s %10s %10s", "stage", "count", "mean", "p50", "p90", "p99", "p999", "max"));
+		for (Stage stage : Stage.values()) {
+			LatencyHistogram.Snapshot latency = totals[stage.ordinal()];
+			System.out.println(String.format("  %-12s %12d %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f", stage.name().toLowerCase(), latency.getCount(), latency.getMean() / 1000.0,
+					latency.getValueAtPercentile(0.50) / 1000.0, latency.getValueAtPercentile(0.90) / 1000.0, latency.getValueAtPercentile(0.99) / 1000.0,
+					latency.getValueAtPercentile(0.999) / 1000.0, latency.getMax() / 1000.0));
+		}
+	}
+	
+	// Spread of per-connection message rates over the last interval, to show whether clients are served fairly
+	private String perConnectionStats(double seconds) {
+		long min = Long.MAX_VALUE;
+		long max = 0;
+		long total = 0;
+		int count = 0;
+		for (Reactor reactor : subReactors) {
+			for (Connection connection : reactor.getConnections()) {
+				long messages = connection.takeMessagesSinceReport();
+				min = Math.min(min, messages);
+				max = Math.max(max, messages);
+				total += messages;
+				count++;
+			}
+		}
+		if (count == 0 || seconds <= 0)
+			return "Per-connection messages/s: n/a";
+		return String.format("Per-connection messages/s: min %.1f, mean %.1f, max %.1f", min / seconds, total / seconds / count, max / seconds);
+	}
+	
+	// When a key is acceptable, accept the client channel and hand it to a reactor for monitoring
+	void accept(SelectionKey key) throws IOException {
 		ServerSocketChannel serverSocket = (ServerSocketChannel) key.channel();
 		SocketChannel clientChannel = serverSocket.accept();
+		if (clientChannel == null)
+			return;
 		
 		if (debug) System.out.println("Accepted incoming connection");
 		
 		clientChannel.configureBlocking(false);
-		int interests = SelectionKey.OP_READ | SelectionKey.OP_WRITE;
-		clientChannel.register(this.selector, interests);
-		
-		if (debug) System.out.println("Incoming connection registered with server selector");
+		selectReactor().register(clientChannel);
+		statTracker.incrementConnections();
+	}
+	
+	private Reactor selectReactor() {
+		if (!leastConnections) {
+			Reactor reactor = subReactors[nextReactor];
+			nextReactor = (nextReactor + 1) % subReactors.length;
+			return reactor;
+		}
+		Reactor leastLoaded = subReactors[0];
+		for (Reactor reactor : subReactors) {
+			if (reactor.getConnectionCount() < leastLoaded.getConnectionCount())
+				leastLoaded = reactor;
+		}
+		return leastLoaded;
 	}
 	
 	// Print usage message if incorrect number of arguments are given
 	private static String usage() {
-		return "Usage:  Server <portnum> <thread-pool-size>";
-	}
-	
-	private void checkComm(SelectionKey key){
-		//synchronized(statTracker){
-			if (key.attachment() != null){
-				try{
-					if (System.nanoTime() - (long) key.attachment() > 2000000000L){
-						if (debug) System.out.println("Hang detected");
-						//tpManager.enqueueTask(new ReplyToClientTask(key, (String) key.attachment()));
-						//tpManager.enqueueTask(new AcceptIncomingTrafficTask(key));
-						key.attach(null);
-					}
-				} catch (Exception e) {	
-				
-				}
-			}
-		//}
+		return "Usage:  Server <portnum> <thread-pool-size> [--engine=nio|virtual|async] [--reactors=<sub-reactor-count>] [--balance=round-robin|least-connections] [--dispatch=managed|queue|steal] [--queue-capacity=<tasks>] [--buffers-per-slab=<n>] [--buffer-cache=<n>] [--admin-port=<port>] [--quiet] " + PoolResizer.usage() + " " + AdmissionControl.usage() + " " + DigestCache.usage() + " " + ParallelHashing.usage() + " " + ConnectionConfig.usage();
 	}
 
 }
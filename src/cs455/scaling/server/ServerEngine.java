@@ -0,0 +1,17 @@
+package cs455.scaling.server;
+
+// How the server drives client connections
+public enum ServerEngine {
+	
+	NIO,		// Reactor selector loops feeding the fixed worker thread pool
+	VIRTUAL,	// One virtual thread per connection doing blocking reads and writes
+	ASYNC;		// Asynchronous channels whose completion handlers chain read, hash and write
+	
+	public static ServerEngine parse(String name) {
+		for (ServerEngine engine : values()) {
+			if (engine.name().equalsIgnoreCase(name))
+				return engine;
+		}
+		throw new IllegalArgumentException("Unknown server engine: " + name);
+	}
+}
@@ -7,25 +7,39 @@ import cs455.util.StatTracker;
 
 public class ThreadPoolManager implements Runnable {
 	
-	private int threadPoolSize;
+	private int threadPoolSize;						// Workers started up front
+	private volatile int activeCount;				// Workers allowed to take tasks; the rest sleep until the pool grows
 	private StatTracker statTracker;
 	private boolean debug;
+	private DispatchMode dispatchMode;
 	private WorkerThread[] threadPool;
 	private Thread[] threadPoolThreads;
-	private LinkedList<Task> taskQueue;
-	private LinkedList<WorkerThread> idleThreads;
-	private boolean shutDown;
+	private LinkedList<Task> taskQueue;				// MANAGED mode: tasks waiting for the manager to pair them
+	private LinkedList<WorkerThread> idleThreads;	// MANAGED mode: workers waiting for the manager to pair them
+	private WorkQueue workQueue;					// QUEUE/STEAL mode: tasks pulled directly by the workers
+	private volatile boolean shutDown;
+	private long lastLocalHits;						// STEAL mode: totals at the previous status line
+	private long lastSteals;
+	private long lastGlobalTakes;
 	public int idleThreadCount;
 	public int pendingTaskCount;
 	
-	public ThreadPoolManager(int threadPoolSize, StatTracker statTracker, boolean debug) {
+	public ThreadPoolManager(int threadPoolSize, StatTracker statTracker, boolean debug, DispatchMode dispatchMode, int queueCapacity) {
+		this(threadPoolSize, threadPoolSize, statTracker, debug, dispatchMode, queueCapacity);
+	}
+	
+	// A pool that can later be resized between 1 and maxPoolSize workers
+	public ThreadPoolManager(int threadPoolSize, int maxPoolSize, StatTracker statTracker, boolean debug, DispatchMode dispatchMode, int queueCapacity) {
 		this.threadPoolSize = threadPoolSize;
+		this.activeCount = threadPoolSize;
 		this.statTracker = statTracker;
 		this.debug = debug;
-		this.threadPool = new WorkerThread[threadPoolSize];
-		this.threadPoolThreads = new Thread[threadPoolSize];
+		this.dispatchMode = dispatchMode;
+		this.threadPool = new WorkerThread[maxPoolSize];
+		this.threadPoolThreads = new Thread[maxPoolSize];
 		this.taskQueue = new LinkedList<Task>();
 		this.idleThreads = new LinkedList<WorkerThread>();
+		this.workQueue = (dispatchMode != DispatchMode.MANAGED) ? new WorkQueue(queueCapacity) : null;
 		this.shutDown = false;
 		this.idleThreadCount = 0;
 		this.pendingTaskCount = 0;
@@ -33,9 +47,13 @@ public class ThreadPoolManager implements Runnable {
 
 	@Override
 	public void run() {
-		if (debug) System.out.println("Thread pool manager started.");
+		if (debug) System.out.println("Thread pool manager started in " + dispatchMode + " mode.");
 		startAllWorkerThreads();
 		
+		// In QUEUE and STEAL mode the workers feed themselves, so the manager has nothing left to do
+		if (dispatchMode != DispatchMode.MANAGED)
+			return;
+		
 		long start = System.nanoTime();
 		while (!shutDown) {
 			start = printTPMdebug(start, debug);
@@ -48,6 +66,7 @@ public class ThreadPoolManager implements Runnable {
 						if (debug) System.out.println("Matching pending task to idle thread...");
 						WorkerThread taskedWorker = idleThreads.removeFirst();
 						Task nextTask = taskQueue.removeFirst();
+						nextTask.markDequeued(System.nanoTime());
 						taskedWorker.assignTask(nextTask);
 						synchronized(taskedWorker){
 							taskedWorker.notify();
@@ -63,27 +82,159 @@ public class ThreadPoolManager implements Runnable {
 		if (System.nanoTime() - start >= (5000000000L)) {
 			if (print) System.out.println("TPM has " + idleThreads.size() + " idle threads, " + taskQueue.size() + " pending tasks.");
 			start = System.nanoTime();
-			synchronized(statTracker){
-				statTracker.resetRW();
-			}
 		}
 		return start;
 	}
 	
-	private void startAllWorkerThreads(){
+	private synchronized void startAllWorkerThreads(){
 		if (debug) System.out.println(" Starting worker threads.");
-		for (int i = 0; i < threadPoolSize; i++){
-			threadPool[i] = new WorkerThread(idleThreads, taskQueue, i, statTracker, debug);
-			threadPoolThreads[i] = new Thread(threadPool[i]);
-			threadPoolThreads[i].start();
+		for (int i = 0; i < activeCount; i++)
+			startWorkerThread(i);
+	}
+	
+	private void startWorkerThread(int i){
+		if (threadPool[i] != null || shutDown)
+			return;
+		threadPool[i] = new WorkerThread(this, idleThreads, workQueue, i, statTracker, debug);
+		threadPoolThreads[i] = new Thread(threadPool[i]);
+		threadPoolThreads[i].start();
+	}
+	
+	// Change how many workers take tasks. Workers above the new count finish the task in hand (and, in
+	// STEAL mode, their own deque) and then sleep; growing wakes them again or starts new ones. Workers
+	// are only started here once the manager thread has started the initial set.
+	public synchronized void resize(int newCount){
+		newCount = Math.max(1, Math.min(newCount, threadPool.length));
+		int oldCount = activeCount;
+		activeCount = newCount;
+		for (int i = 0; i < threadPool.length; i++){
+			if (threadPool[i] != null)
+				threadPool[i].wake();
+			else if (i < newCount && threadPool[0] != null)
+				startWorkerThread(i);
 		}
+		// Retiring workers may be parked on the queue waiting for work they should no longer take
+		if (newCount < oldCount && workQueue != null)
+			workQueue.wakeAll();
+	}
+	
+	public int getActiveCount(){
+		return activeCount;
+	}
+	
+	public int getMaxPoolSize(){
+		return threadPool.length;
 	}
 
-	public void enqueueTask(Task task) {
+	// Queue a task from outside the pool. In QUEUE and STEAL mode the queue is bounded: returns false
+	// without queuing the task when it is full, and the caller holds the task back until a worker catches
+	// up. Spinning here would be wrong for a worker, which is itself one of the queue's consumers.
+	public boolean enqueueTask(Task task) {
+		task.markEnqueued(System.nanoTime());
+		if (dispatchMode != DispatchMode.MANAGED) {
+			if (debug) System.out.println("TPM enqueuing new task");
+			return workQueue.offer(task);
+		}
 		synchronized(taskQueue){
 			if (debug) System.out.println("TPM enqueuing new task");
 			taskQueue.add(task);
 		}
+		return true;
+	}
+	
+	// Queue a task produced by a worker; never blocks. In STEAL mode it stays on that worker's own deque,
+	// so the read -> hash -> reply chain of a message normally runs on one core. In QUEUE mode a task
+	// that does not fit in the shared queue goes on the worker's overflow list, which it runs first.
+	public void enqueueFollowUpTask(WorkerThread worker, Task task) {
+		if (dispatchMode == DispatchMode.MANAGED) {
+			enqueueTask(task);
+			return;
+		}
+		if (dispatchMode == DispatchMode.QUEUE) {
+			if (!enqueueTask(task))
+				worker.pushOverflowTask(task);
+			return;
+		}
+		task.markEnqueued(System.nanoTime());
+		// Only rouse a thief when the owner already has a backlog it cannot run right away
+		if (worker.pushLocalTask(task) > 1)
+			workQueue.wakeOne();
+	}
+	
+	// STEAL mode: take the oldest task from some other worker's deque
+	Task stealTask(WorkerThread thief, int startIndex) {
+		for (int i = 0; i < threadPool.length; i++) {
+			WorkerThread victim = threadPool[Math.floorMod(startIndex + i, threadPool.length)];
+			if (victim == null || victim == thief)
+				continue;
+			Task stolen = victim.stealLocalTask();
+			if (stolen != null)
+				return stolen;
+		}
+		return null;
+	}
+	
+	// Stop the manager and the workers, waiting briefly for them to finish the task in hand. Tasks
+	// still queued are dropped.
+	public void shutdown() {
+		// Under the lock, so resize() cannot start a worker that would miss the interrupt
+		synchronized (this) {
+			shutDown = true;
+		}
+		for (Thread thread : threadPoolThreads) {
+			if (thread != null)
+				thread.interrupt();
+		}
+		for (Thread thread : threadPoolThreads) {
+			if (thread == null)
+				continue;
+			try {
+				thread.join(1000);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+	
+	public int getIdleThreadCount() {
+		if (dispatchMode != DispatchMode.MANAGED)
+			return workQueue.getParkedCount();
+		return idleThreadCount;
+	}
+	
+	public int getPendingTaskCount() {
+		if (dispatchMode == DispatchMode.MANAGED)
+			return pendingTaskCount;
+		int pending = workQueue.size();
+		for (WorkerThread worker : threadPool) {
+			if (worker != null)
+				pending += worker.getLocalTaskCount();
+		}
+		return pending;
+	}
+	
+	// STEAL mode: steal count and local-hit ratio since the previous call, for the status line
+	public String getStealStats() {
+		long localHits = 0, steals = 0, globalTakes = 0;
+		for (WorkerThread worker : threadPool) {
+			if (worker != null) {
+				localHits += worker.localHits;
+				steals += worker.steals;
+				globalTakes += worker.globalTakes;
+			}
+		}
+		long intervalLocal = localHits - lastLocalHits;
+		long intervalSteals = steals - lastSteals;
+		long intervalTotal = intervalLocal + intervalSteals + (globalTakes - lastGlobalTakes);
+		lastLocalHits = localHits;
+		lastSteals = steals;
+		lastGlobalTakes = globalTakes;
+		double localRatio = (intervalTotal == 0) ? 0.0 : (100.0 * intervalLocal / intervalTotal);
+		return "Steals: " + intervalSteals + "\tLocal hit ratio: " + String.format("%.1f", localRatio) + "%";
+	}
+	
+	public DispatchMode getDispatchMode() {
+		return dispatchMode;
 	}
 
 }
@@ -0,0 +1,321 @@
+package cs455.scaling.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import cs455.message.FrameHeader;
+import cs455.message.Protocol;
+import cs455.util.BufferPool;
+import cs455.util.DigestAlgorithm;
+import cs455.util.DigestAlgorithms;
+import cs455.util.ParallelHashing;
+import cs455.util.StatTracker;
+import cs455.util.StatTracker.Stage;
+import cs455.util.TimingWheel;
+
+// Thread-per-connection engine. Each client gets a virtual thread that blocks on its channel,
+// reading a frame, hashing it and writing the reply in turn, so the JVM's scheduler takes the
+// place of the selectors and the worker pool. Replies go out in request order. A blocked read or
+// write cannot time itself out, so connection threads only stamp their connection as bytes move and
+// one deadline thread, which owns a timing wheel like a reactor's, closes the channels that have run
+// out of time; the blocked thread then fails out of its read or write and cleans up.
+public class VirtualThreadEngine implements Runnable {
+	
+	private final int serverPort;
+	private final StatTracker statTracker;
+	private final BufferPool bufferPool;
+	private final ConnectionConfig config;
+	private final DigestCache digestCache;			// Null when not enabled
+	private final ParallelHashing parallelHashing;
+	private final boolean debug;
+	private final ExecutorService executor;
+	private final Set<SocketChannel> channels;		// Open client channels, closed on shutdown
+	private final ConcurrentLinkedQueue<VirtualConnection> newConnections;	// Accepted, not yet on the deadline thread's wheel
+	private volatile Thread deadlineThread;			// Null when every timeout is switched off
+	private ServerSocketChannel serverSocketChannel;
+	private volatile boolean shutDown;
+	
+	public VirtualThreadEngine(int serverPort, StatTracker statTracker, BufferPool bufferPool, ConnectionConfig config, DigestCache digestCache, ParallelHashing parallelHashing, boolean debug) {
+		this.serverPort = serverPort;
+		this.statTracker = statTracker;
+		this.bufferPool = bufferPool;
+		this.config = config;
+		this.digestCache = digestCache;
+		this.parallelHashing = parallelHashing;
+		this.debug = debug;
+		this.executor = newThreadPerTaskExecutor();
+		this.channels = ConcurrentHashMap.newKeySet();
+		this.newConnections = new ConcurrentLinkedQueue<VirtualConnection>();
+		this.shutDown = false;
+	}
+	
+	// Open the server socket ahead of run(); returns the port it is bound to
+	public int bind() throws IOException {
+		serverSocketChannel = ServerSocketChannel.open();
+		serverSocketChannel.socket().bind(new InetSocketAddress(serverPort));
+		return serverSocketChannel.socket().getLocalPort();
+	}
+	
+	// Stop accepting and close every client channel, which ends the connection threads
+	public void shutdown() {
+		shutDown = true;
+		try {
+			serverSocketChannel.close();
+		} catch (IOException e) {
+			System.out.println(e);
+		}
+		for (SocketChannel channel : channels) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				System.out.println(e);
+			}
+		}
+		executor.shutdown();
+		if (deadlineThread != null)
+			deadlineThread.interrupt();
+	}
+	
+	// Virtual threads arrived in Java 21. Look them up reflectively so the server still builds and runs
+	// on older JDKs, where each connection gets a platform thread instead.
+	private static ExecutorService newThreadPerTaskExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			System.out.println("Virtual threads need Java 21 or later, using one platform thread per connection instead.");
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			if (serverSocketChannel == null)
+				bind();
+			if (debug) System.out.println(" Virtual thread engine accepting on port " + serverSocketChannel.socket().getLocalPort());
+			if (config.hasTimeouts()) {
+				deadlineThread = new Thread(this::runDeadlines, "deadlines");
+				deadlineThread.start();
+			}
+			while (true) {
+				SocketChannel clientChannel = serverSocketChannel.accept();
+				channels.add(clientChannel);
+				statTracker.incrementConnections();
+				VirtualConnection connection = new VirtualConnection(clientChannel);
+				if (deadlineThread != null)
+					newConnections.add(connection);
+				executor.execute(() -> serve(connection));
+			}
+		} catch (IOException e) {
+			if (!shutDown)
+				System.out.println(e);
+		}
+	}
+	
+	// Deadline thread: each tick puts newly accepted connections on the wheel, then closes the ones that
+	// come up with a deadline passed and puts the rest back for their next one
+	private void runDeadlines() {
+		TimingWheel<VirtualConnection> deadlines = new TimingWheel<VirtualConnection>(Reactor.DEADLINE_TICK_NANOS, Reactor.DEADLINE_SLOTS, System.nanoTime());
+		ArrayList<VirtualConnection> due = new ArrayList<VirtualConnection>();
+		try {
+			while (!shutDown) {
+				long now = System.nanoTime();
+				VirtualConnection connection;
+				while ((connection = newConnections.poll()) != null)
+					due.add(connection);
+				deadlines.advance(now, due);
+				for (VirtualConnection next : due) {
+					long deadline = next.checkDeadlines(now);
+					if (deadline != -1)
+						deadlines.schedule(next.deadlineEntry, deadline);
+				}
+				due.clear();
+				TimeUnit.NANOSECONDS.sleep(Math.max(1, deadlines.nanosUntilNextTick(System.nanoTime())));
+			}
+		} catch (InterruptedException e) {
+			// Shutting down
+		}
+	}
+	
+	private void serve(VirtualConnection connection) {
+		SocketChannel channel = connection.channel;
+		ByteBuffer headerBuffer = ByteBuffer.allocate(Protocol.REQUEST_HEADER_LENGTH);
+		FrameHeader header = new FrameHeader();
+		ByteBuffer pooled = bufferPool.acquire();
+		DigestAlgorithm streamAlgorithm = null;				// --streaming-hash: algorithm of the last streamed payload
+		DigestAlgorithm.Incremental streamDigest = null;	// and its running digest, reused while the algorithm stays the same
+		try {
+			while (true) {
+				headerBuffer.clear();
+				if (!readFully(connection, headerBuffer, true))
+					break;
+				long arrival = System.nanoTime();
+				headerBuffer.flip();
+				header.decodeRequest(headerBuffer, config.maxPayload);
+				
+				int length = header.getPayloadLength();
+				DigestAlgorithm algorithm = config.streamingHash ? DigestAlgorithms.forId(header.getAlgorithm()) : null;
+				if (algorithm != null && algorithm != streamAlgorithm) {
+					streamDigest = algorithm.newIncremental();
+					streamAlgorithm = (streamDigest == null) ? null : algorithm;
+				}
+				ByteBuffer payload = null;
+				if (algorithm == null || algorithm != streamAlgorithm) {
+					payload = (length <= pooled.capacity()) ? pooled : ByteBuffer.allocate(length);
+					payload.clear().limit(length);
+					readFully(connection, payload, false);
+					payload.flip();
+				}
+				else {
+					// Hash the payload a pooled buffer at a time as it arrives
+					readStreaming(connection, pooled, length, streamDigest);
+				}
+				// The frame is in; hashing it is the server's time, not the client's
+				connection.hashing = true;
+				connection.frameStarted = 0;
+				statTracker.addBytesRead(Protocol.REQUEST_HEADER_LENGTH + length);
+				long hashStart = System.nanoTime();
+				statTracker.recordLatency(Stage.READ, hashStart - arrival);
+				
+				ByteBuffer reply = (payload == null)
+						? ReplyBuilder.finish(streamAlgorithm, streamDigest, header.getRequestID())
+						: ReplyBuilder.build(digestCache, parallelHashing, header.getAlgorithm(), header.getRequestID(), payload);
+				statTracker.incrementReads();
+				long writeStart = System.nanoTime();
+				statTracker.recordLatency(Stage.HASH, writeStart - hashStart);
+				int replyLength = reply.remaining();
+				connection.writeStarted = writeStart;
+				connection.hashing = false;
+				while (reply.hasRemaining())
+					channel.write(reply);
+				long writeEnd = System.nanoTime();
+				connection.lastActivity = writeEnd;
+				connection.writeStarted = 0;
+				statTracker.recordLatency(Stage.WRITE, writeEnd - writeStart);
+				statTracker.recordLatency(Stage.END_TO_END, writeEnd - arrival);
+				statTracker.incrementWrites();
+				statTracker.addBytesWritten(replyLength);
+				statTracker.addWriteBatch(1);
+			}
+		} catch (IOException e) {
+			if (debug) System.out.println(e);
+		} finally {
+			connection.closed = true;
+			bufferPool.release(pooled);
+			// The thread is about to end, so its cache would strand the buffers
+			bufferPool.flushThreadCache();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				System.out.println(e);
+			}
+			channels.remove(channel);
+			statTracker.decrementConnections();
+		}
+	}
+	
+	// Blocks until length bytes have been read through buffer, feeding each piece to the running digest
+	private static void readStreaming(VirtualConnection connection, ByteBuffer buffer, int length, DigestAlgorithm.Incremental running) throws IOException {
+		int remaining = length;
+		while (remaining > 0) {
+			buffer.clear().limit(Math.min(buffer.capacity(), remaining));
+			if (connection.read(buffer) == -1)
+				throw new EOFException("Client closed the connection part way through a frame");
+			buffer.flip();
+			remaining -= buffer.remaining();
+			running.update(buffer);
+		}
+	}
+	
+	// Blocks until the buffer is full. Returns false on a clean end of stream before the first byte
+	// when allowed, any other end of stream is an error.
+	private static boolean readFully(VirtualConnection connection, ByteBuffer buffer, boolean endAllowed) throws IOException {
+		boolean first = true;
+		while (buffer.hasRemaining()) {
+			if (connection.read(buffer) == -1) {
+				if (first && endAllowed)
+					return false;
+				throw new EOFException("Client closed the connection part way through a frame");
+			}
+			first = false;
+		}
+		return true;
+	}
+	
+	// One client's channel and the stamps its thread leaves for the deadline thread
+	private final class VirtualConnection {
+		private final SocketChannel channel;
+		private volatile long lastActivity;			// Last read or write that moved any bytes
+		private volatile long frameStarted;			// When the first byte of the request being read arrived, 0 between frames
+		private volatile long writeStarted;			// When the reply being written started, 0 when none is
+		private volatile boolean hashing;			// Between a complete frame and the start of its reply
+		private volatile boolean closed;
+		private final TimingWheel.Entry<VirtualConnection> deadlineEntry;	// Deadline thread only
+		
+		VirtualConnection(SocketChannel channel) {
+			this.channel = channel;
+			this.lastActivity = System.nanoTime();
+			this.deadlineEntry = new TimingWheel.Entry<VirtualConnection>(this);
+		}
+		
+		// Connection thread: a read that stamps the connection when bytes arrive
+		int read(ByteBuffer buffer) throws IOException {
+			int count = channel.read(buffer);
+			if (count > 0) {
+				long now = System.nanoTime();
+				lastActivity = now;
+				if (frameStarted == 0)
+					frameStarted = now;
+			}
+			return count;
+		}
+		
+		// Deadline thread: closes the channel if the client has left a reply unread, stalled part way
+		// through a request frame or sat idle for too long, and otherwise returns when to look at it
+		// again. Returns -1 once the connection is closed.
+		long checkDeadlines(long now) {
+			if (closed)
+				return -1;
+			long recheck = now + config.shortestTimeoutNanos();
+			if (hashing)
+				return recheck;
+			long deadline = Long.MAX_VALUE;
+			long writing = writeStarted;
+			if (writing != 0 && config.writeTimeoutNanos > 0)
+				deadline = writing + config.writeTimeoutNanos;
+			long started = frameStarted;
+			if (started != 0) {
+				if (config.readTimeoutNanos > 0)
+					deadline = Math.min(deadline, started + config.readTimeoutNanos);
+			}
+			else if (writing == 0 && config.idleTimeoutNanos > 0) {
+				deadline = Math.min(deadline, lastActivity + config.idleTimeoutNanos);
+			}
+			if (deadline == Long.MAX_VALUE)
+				return recheck;
+			if (deadline - now > 0)
+				return deadline;
+			statTracker.incrementTimeouts();
+			// The connection's thread fails out of its blocked read or write and cleans up
+			try {
+				channel.close();
+			} catch (IOException e) {
+				System.out.println(e);
+			}
+			return -1;
+		}
+	}
+}
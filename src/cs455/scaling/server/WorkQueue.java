@@ -0,0 +1,177 @@
+package cs455.scaling.server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import cs455.scaling.server.tasks.Task;
+
+// Bounded multi-producer/multi-consumer ring of tasks. Producers and consumers claim slots by
+// CAS on a per-slot sequence number, so neither side ever takes a lock. Consumers that find
+// the ring empty spin briefly, then park until a producer hands them work.
+public class WorkQueue {
+	
+	private static final int SPIN_TRIES = 64;			// Empty polls before a consumer parks
+	
+	private final int mask;								// Capacity - 1, capacity is a power of two
+	private final AtomicReferenceArray<Task> slots;		// Ring storage
+	private final AtomicLongArray sequences;			// Per-slot sequence, tells producers and consumers whose turn it is
+	private final AtomicLong enqueuePosition;			// Next slot a producer will claim
+	private final AtomicLong dequeuePosition;			// Next slot a consumer will claim
+	private final ConcurrentLinkedQueue<Waiter> parkedConsumers;	// May hold waiters that have since left, skipped when signalling
+	private final AtomicInteger parkedCount;
+	
+	// A consumer about to park. Whoever claims it first, a producer signalling it or the consumer leaving
+	// on its own, decides what the entry means; the other side sees the claim and acts on it.
+	private static final class Waiter {
+		final Thread thread;
+		final AtomicBoolean claimed;
+		
+		Waiter(Thread thread) {
+			this.thread = thread;
+			this.claimed = new AtomicBoolean();
+		}
+	}
+	
+	public WorkQueue(int capacity) {
+		int size = 1;
+		while (size < capacity)
+			size <<= 1;
+		this.mask = size - 1;
+		this.slots = new AtomicReferenceArray<Task>(size);
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++)
+			sequences.set(i, i);
+		this.enqueuePosition = new AtomicLong();
+		this.dequeuePosition = new AtomicLong();
+		this.parkedConsumers = new ConcurrentLinkedQueue<Waiter>();
+		this.parkedCount = new AtomicInteger();
+	}
+	
+	// Returns false without blocking if the ring is full
+	public boolean offer(Task task) {
+		long position = enqueuePosition.get();
+		while (true) {
+			int index = (int) (position & mask);
+			long difference = sequences.get(index) - position;
+			if (difference == 0) {
+				if (enqueuePosition.compareAndSet(position, position + 1)) {
+					slots.lazySet(index, task);
+					sequences.set(index, position + 1);
+					signalConsumer();
+					return true;
+				}
+				position = enqueuePosition.get();
+			}
+			else if (difference < 0) {
+				return false;
+			}
+			else {
+				position = enqueuePosition.get();
+			}
+		}
+	}
+	
+	// Returns null without blocking if the ring is empty
+	public Task poll() {
+		long position = dequeuePosition.get();
+		while (true) {
+			int index = (int) (position & mask);
+			long difference = sequences.get(index) - (position + 1);
+			if (difference == 0) {
+				if (dequeuePosition.compareAndSet(position, position + 1)) {
+					Task task = slots.get(index);
+					slots.lazySet(index, null);
+					sequences.set(index, position + mask + 1);
+					return task;
+				}
+				position = dequeuePosition.get();
+			}
+			else if (difference < 0) {
+				return null;
+			}
+			else {
+				position = dequeuePosition.get();
+			}
+		}
+	}
+	
+	// Spins, then parks once; returns null if woken without a task, e.g. by wakeOne()
+	public Task pollOrPark() throws InterruptedException {
+		Thread self = Thread.currentThread();
+		for (int i = 0; i < SPIN_TRIES; i++) {
+			Task task = poll();
+			if (task != null)
+				return task;
+			Thread.onSpinWait();
+		}
+		
+		// Announce ourselves before the final check so a concurrent offer cannot slip past unseen
+		Waiter waiter = new Waiter(self);
+		parkedCount.incrementAndGet();
+		parkedConsumers.add(waiter);
+		Task task = poll();
+		if (task == null)
+			LockSupport.park(this);
+		// Leaving claims the entry, so later signals skip it. If a producer claimed it first while we
+		// were leaving with a task, its signal was meant for a consumer that is really asleep: pass it on.
+		boolean signalled = !waiter.claimed.compareAndSet(false, true);
+		parkedCount.decrementAndGet();
+		if (signalled && task != null)
+			signalConsumer();
+		pruneLeftWaiters();
+		if (task == null && self.isInterrupted())
+			throw new InterruptedException();
+		return task;
+	}
+	
+	// Wakes one parked consumer, if any, so it can look for work outside this queue
+	public void wakeOne() {
+		signalConsumer();
+	}
+	
+	// Wakes every parked consumer, used on shut down
+	public void wakeAll() {
+		Waiter waiter;
+		while ((waiter = parkedConsumers.poll()) != null) {
+			waiter.claimed.set(true);
+			LockSupport.unpark(waiter.thread);
+		}
+	}
+	
+	private void signalConsumer() {
+		if (parkedCount.get() > 0) {
+			Waiter waiter;
+			while ((waiter = parkedConsumers.poll()) != null) {
+				if (waiter.claimed.compareAndSet(false, true)) {
+					LockSupport.unpark(waiter.thread);
+					return;
+				}
+			}
+		}
+	}
+	
+	// Drops entries of consumers that have left from the front of the list, so it stays about as long
+	// as the number of consumers really parked without any O(n) removal
+	private void pruneLeftWaiters() {
+		Waiter head;
+		while ((head = parkedConsumers.peek()) != null && head.claimed.get())
+			parkedConsumers.remove(head);
+	}
+	
+	public int size() {
+		return (int) Math.max(0, enqueuePosition.get() - dequeuePosition.get());
+	}
+	
+	public int capacity() {
+		return mask + 1;
+	}
+	
+	public int getParkedCount() {
+		return parkedCount.get();
+	}
+}
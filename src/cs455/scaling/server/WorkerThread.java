@@ -2,54 +2,73 @@ package cs455.scaling.server;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import cs455.scaling.server.tasks.AcceptIncomingTrafficTask;
 import cs455.scaling.server.tasks.ComputeHashTask;
 import cs455.scaling.server.tasks.ReplyToClientTask;
 import cs455.scaling.server.tasks.Task;
-import cs455.util.HashComputer;
 import cs455.util.StatTracker;
+import cs455.util.StatTracker.Stage;
 
 public class WorkerThread implements Runnable {
 	private int workerThreadID;
 	private StatTracker statTracker;
 	private boolean debug;
+	private ArrayList<ComputeHashTask> completedReads;	// Frames finished by the current read task
+	private ThreadPoolManager tpManager;
 	private LinkedList<WorkerThread> idleThreads;
+	private WorkQueue workQueue;
+	private ConcurrentLinkedDeque<Task> localTasks;		// STEAL mode: owner pushes and pops at the head, thieves take the tail
+	private final AtomicInteger localTaskCount;			// STEAL mode: size of localTasks, whose own size() walks the deque
+	private ArrayDeque<Task> overflow;					// QUEUE mode: this worker's follow-ups that found the shared queue full
+	private volatile int overflowCount;					// Size of overflow, for the status line
+	private int stealCursor;
 	private boolean shutDown;
 	public Object sleepLock;
 	private Task currentTask;
-	private LinkedList<Task> taskQueue;
-	public long taskTime;
+	volatile long localHits;							// STEAL mode counters, written only by this worker
+	volatile long steals;
+	volatile long globalTakes;
 
-	public WorkerThread(LinkedList<WorkerThread> idleThreads, LinkedList<Task> taskQueue, int id, StatTracker statTracker, boolean debug) {
+	public WorkerThread(ThreadPoolManager tpManager, LinkedList<WorkerThread> idleThreads, WorkQueue workQueue, int id, StatTracker statTracker, boolean debug) {
 		this.workerThreadID = id;
 		this.statTracker = statTracker;
 		this.debug = debug;
+		this.completedReads = new ArrayList<ComputeHashTask>();
+		this.tpManager = tpManager;
 		this.idleThreads = idleThreads;
+		this.workQueue = workQueue;
+		this.localTasks = (tpManager.getDispatchMode() == DispatchMode.STEAL) ? new ConcurrentLinkedDeque<Task>() : null;
+		this.localTaskCount = new AtomicInteger();
+		this.overflow = (tpManager.getDispatchMode() == DispatchMode.QUEUE) ? new ArrayDeque<Task>() : null;
+		this.stealCursor = id + 1;
 		this.shutDown = false;
 		this.sleepLock = new Object();
 		this.currentTask = null;
-		this.taskQueue = taskQueue;
-		this.taskTime = 0;
 	}
 
 	@Override
 	public void run() {
 		if (debug) System.out.println("  New worker thread " + workerThreadID + " executed.");
-		reportIdle();
 		while (!shutDown) {
 			if (currentTask == null){
-				reportIdle();
+				if (!isActive() && (localTasks == null || localTasks.isEmpty()) && (overflow == null || overflow.isEmpty()))
+					sleepUntilActive();
+				else if (localTasks != null)
+					findTask();
+				else if (workQueue != null)
+					takeTask();
+				else
+					reportIdle();
 			}
 			else {
 				if (debug) System.out.println("  Worker thread " + workerThreadID + " has a new task");
 				performTask();
-				synchronized(statTracker){
-					statTracker.setTime(System.nanoTime());
-				}
 			}
 		}
 		
@@ -58,121 +77,113 @@ public class WorkerThread implements Runnable {
 	private void performTask(){
 		if (debug) System.out.println(" Worker thread " + workerThreadID + " performing task...");
 		synchronized (currentTask){
-			taskTime = System.nanoTime();
-			SelectionKey key = currentTask.getKey();
-			if (currentTask instanceof AcceptIncomingTrafficTask){
-				try {
-					ComputeHashTask hashTask = read();
-					synchronized(taskQueue){
-						taskQueue.add(hashTask);
+			currentTask.markStarted(System.nanoTime());
+			statTracker.recordLatency(Stage.QUEUE_WAIT, currentTask.getDequeueTime() - currentTask.getEnqueueTime());
+			Connection connection = (Connection) currentTask.getKey().attachment();
+			try {
+				if (currentTask instanceof AcceptIncomingTrafficTask){
+					try {
+						read(connection);
+					} finally {
+						connection.endRead();
+						recordCompletion(Stage.READ);
+						// Queue whatever was completed, even if the connection failed part way. Requests over
+						// the backlog limit go straight to a BUSY reply when the server is shedding load. Requests
+						// hashed while they were read already hold their reply and skip the hashing stage.
+						for (ComputeHashTask hashTask : completedReads) {
+							Task next;
+							if (hashTask.getReply() != null) {
+								statTracker.incrementReads();
+								next = new ReplyToClientTask(currentTask.getKey(), hashTask.getReply());
+							}
+							else {
+								ByteBuffer busy = connection.admitOrShed(hashTask);
+								next = (busy == null) ? hashTask : new ReplyToClientTask(currentTask.getKey(), busy);
+							}
+							next.setArrivalTime(currentTask.getArrivalTime());
+							tpManager.enqueueFollowUpTask(this, next);
+						}
+						completedReads.clear();
 					}
-				} catch (IOException e) {
-					System.out.println(e);
-				} finally {
-					key.attach(null);
-					
 				}
-			}
-			else if (currentTask instanceof ComputeHashTask){
-				ReplyToClientTask newReplyTask = computeHash();
-				synchronized(taskQueue){
-					taskQueue.add(newReplyTask);
+				else if (currentTask instanceof ComputeHashTask){
+					ReplyToClientTask newReplyTask = computeHash(connection);
+					recordCompletion(Stage.HASH);
+					newReplyTask.setArrivalTime(currentTask.getArrivalTime());
+					tpManager.enqueueFollowUpTask(this, newReplyTask);
 				}
-				key.attach(null);
-			}
-			else if (currentTask instanceof ReplyToClientTask){
-				try {
-					reply();
-				} catch (IOException e) {
-					System.out.println(e);
-				} finally {
-					key.attach(null);
+				else if (currentTask instanceof ReplyToClientTask){
+					reply(connection);
+					recordCompletion(Stage.WRITE);
+					statTracker.recordLatency(Stage.END_TO_END, currentTask.getCompleteTime() - currentTask.getArrivalTime());
 				}
+			} catch (IOException e) {
+				if (debug) System.out.println(e);
+				connection.close();
+			} finally {
+				currentTask = null;
 			}
 		}
 	}
 	
-	private ComputeHashTask read() throws IOException{
+	private void recordCompletion(Stage stage){
+		currentTask.markCompleted(System.nanoTime());
+		statTracker.recordLatency(stage, currentTask.getCompleteTime() - currentTask.getStartTime());
+	}
+	
+	private void read(Connection connection) throws IOException{
 		if (debug) System.out.println("  READ TASK");
-		ByteBuffer buffer = ByteBuffer.allocate(8192);
-		SelectionKey key = currentTask.getKey();
-		key.attach(System.nanoTime());
-		SocketChannel socketChannel = (SocketChannel) key.channel();
-		int read = 0;
-		try{
-			byte[] data = new byte[8192];
-			while(buffer.hasRemaining() && read != -1){
-				read = socketChannel.read(buffer);
-			}
-			if (debug) System.out.println(" Worker thread " + workerThreadID + " has received " + read + " bytes of data.");
-			
-			buffer.rewind();
-			int byteCount = 0;
-			for (int i = 0; i < 8192; i++){
-				data[i] = buffer.get();
-				byteCount++;
-			}
-			
-			if (debug) System.out.println(byteCount + " total bytes read from client.");
-			ComputeHashTask hashTask = new ComputeHashTask(key,data);
-			currentTask = null;
-			return hashTask;
-		} catch (NegativeArraySizeException e) {
-			synchronized(statTracker){
-				statTracker.decrementConnections();
-			}
-			currentTask = null;
-		}
-		return null;
+		connection.read(completedReads);
+		if (debug) System.out.println(" Worker thread " + workerThreadID + " has received " + completedReads.size() + " complete messages.");
 	}
 	
-	private ReplyToClientTask computeHash(){
+	private ReplyToClientTask computeHash(Connection connection){
 		if (debug) System.out.println("  COMPUTE HASH");
-		HashComputer hashComp = new HashComputer();
-		byte[] data = ((ComputeHashTask) currentTask).getBytes();
-		currentTask.getKey().attach(System.nanoTime());
-		String hashCode = hashComp.SHA1FromBytes(data);
-		if (debug) System.out.println("Hashed " + data.length + " bytes: " + hashCode);
-		ReplyToClientTask replyTask = new ReplyToClientTask(currentTask.getKey(), hashCode);
-		currentTask = null;
-		synchronized(statTracker){
-			statTracker.incrementReads();
-		}
+		ComputeHashTask hashTask = (ComputeHashTask) currentTask;
+		ByteBuffer reply = ReplyBuilder.build(connection.getDigestCache(), connection.getParallelHashing(), hashTask.getAlgorithm(), hashTask.getRequestID(), hashTask.getBuffer());
+		connection.recycle(hashTask);
+		if (debug) System.out.println("Hashed request " + hashTask.getRequestID());
+		ReplyToClientTask replyTask = new ReplyToClientTask(currentTask.getKey(), reply);
+		statTracker.incrementReads();
 		return replyTask;
 	}
 	
-	private void reply() throws IOException{
+	private void reply(Connection connection) throws IOException{
 		if (debug) System.out.println("  REPLY TO CLIENT");
-		ByteBuffer buffer = ByteBuffer.allocate(40);
-		if (debug) System.out.println("  Replying with hash: " + ((ReplyToClientTask) currentTask).getReplyHash());
-		SelectionKey key = currentTask.getKey();
-		byte[] data = new byte[40];
-		data = ((ReplyToClientTask) currentTask).getReplyHash().getBytes();
-		buffer.put(data);
-		key.interestOps(SelectionKey.OP_WRITE | SelectionKey.OP_READ);
-		SocketChannel socketChannel = (SocketChannel) key.channel();
-		int read = 0;
-		buffer.rewind();
+		connection.write(((ReplyToClientTask) currentTask).getReply());
+		statTracker.incrementWrites();
+	}
+	
+	public synchronized void assignTask(Task newTask){
+		currentTask = newTask;
+	}
+	
+	// Whether the pool's current size includes this worker
+	private boolean isActive(){
+		return workerThreadID < tpManager.getActiveCount();
+	}
+	
+	// The pool has shrunk below this worker: sleep until it grows again
+	private void sleepUntilActive(){
+		if (debug) System.out.println("Worker thread " + workerThreadID + " retiring until the pool grows.");
 		try {
-			while (buffer.hasRemaining() && read != -1){
-				read = socketChannel.write(buffer);
+			synchronized(sleepLock){
+				while (!isActive())
+					sleepLock.wait();
 			}
-			String replymsg = (String) ((ReplyToClientTask) currentTask).getReplyHash();
-			key.attach(replymsg);
-		} catch (NegativeArraySizeException e) {
-			synchronized(statTracker){
-				statTracker.decrementConnections();
-			}
-			currentTask = null;
-		}
-		synchronized(statTracker){
-			statTracker.incrementWrites();
+		} catch (InterruptedException e) {
+			shutDown = true;
 		}
-		currentTask = null;
 	}
 	
-	public synchronized void assignTask(Task newTask){
-		currentTask = newTask;
+	// Called by the manager after a resize so that sleeping or idle workers look at the new size
+	void wake(){
+		synchronized(sleepLock){
+			sleepLock.notifyAll();
+		}
+		synchronized(this){
+			this.notifyAll();
+		}
 	}
 	
 	private void reportIdle(){
@@ -182,11 +193,95 @@ public class WorkerThread implements Runnable {
 		}
 		try {
 			synchronized(this){
-				this.wait();
+				// The manager may assign a task before we get here, so only wait while there is none
+				while (currentTask == null && isActive())
+					this.wait();
 			}
 		} catch (InterruptedException e) {
-			System.out.println(e);
+			// The manager is shutting the pool down
+			shutDown = true;
+		}
+		// Retiring: leave the idle list. The manager assigns under the same lock, so once we are off it
+		// either a task has already been handed over or none will be.
+		synchronized(idleThreads){
+			idleThreads.remove(this);
+		}
+	}
+	
+	// QUEUE mode: run any overflowed follow-ups first, then pull the next task straight from the shared
+	// work queue, parking while it is empty. Comes back empty handed if woken by a resize, so the run
+	// loop can check whether to retire.
+	private void takeTask(){
+		if (!overflow.isEmpty()) {
+			currentTask = overflow.pollFirst();
+			overflowCount--;
+			currentTask.markDequeued(System.nanoTime());
+			return;
+		}
+		try {
+			Task task = workQueue.pollOrPark();
+			if (task != null)
+				task.markDequeued(System.nanoTime());
+			currentTask = task;
+		} catch (InterruptedException e) {
+			shutDown = true;
+		}
+	}
+	
+	// STEAL mode: own deque first, then the shared queue, then the other workers' deques
+	private void findTask(){
+		Task task = localTasks.pollFirst();
+		if (task != null) {
+			localTaskCount.decrementAndGet();
+			localHits++;
 		}
+		else if ((task = workQueue.poll()) != null) {
+			globalTakes++;
+		}
+		else if ((task = tpManager.stealTask(this, stealCursor++)) != null) {
+			steals++;
+		}
+		else {
+			try {
+				// May come back empty handed when woken to steal, in which case the next pass looks again
+				task = workQueue.pollOrPark();
+				if (task != null)
+					globalTakes++;
+			} catch (InterruptedException e) {
+				shutDown = true;
+			}
+		}
+		if (task != null)
+			task.markDequeued(System.nanoTime());
+		currentTask = task;
+	}
+	
+	// Returns the number of tasks now waiting on this worker's deque. Counted before the push, so a
+	// thief that takes the task straight away can never drive the count below zero.
+	int pushLocalTask(Task task){
+		int count = localTaskCount.incrementAndGet();
+		localTasks.addFirst(task);
+		return count;
+	}
+	
+	Task stealLocalTask(){
+		Task task = localTasks.pollLast();
+		if (task != null)
+			localTaskCount.decrementAndGet();
+		return task;
+	}
+	
+	// QUEUE mode, owner only: hold a follow-up the shared queue had no room for
+	void pushOverflowTask(Task task){
+		overflow.addLast(task);
+		overflowCount++;
+	}
+	
+	// Tasks held by this worker alone: its deque in STEAL mode, its overflow in QUEUE mode
+	int getLocalTaskCount(){
+		if (localTasks != null)
+			return localTaskCount.get();
+		return (overflow != null) ? overflowCount : 0;
 	}
 
 }
@@ -6,6 +6,7 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.LinkedList;
 
+import cs455.message.Protocol;
 import cs455.scaling.server.tasks.AcceptIncomingTrafficTask;
 import cs455.scaling.server.tasks.ComputeHashTask;
 import cs455.scaling.server.tasks.ReplyToClientTask;
@@ -56,7 +57,7 @@ public class WorkerThread_old implements Runnable {
 					currentTask = null;
 				}
 				if (result != null) {						// If task was a read task, hand the thread pool manager a reply task
-					replyTask = new ReplyToClientTask(key, result);
+					replyTask = new ReplyToClientTask(key, ByteBuffer.wrap(result.getBytes()));
 					currentTask = null;
 				}
 				
@@ -108,7 +109,7 @@ public class WorkerThread_old implements Runnable {
 					
 					// Prepare to compute the hash value for the received payload
 					this.statTracker.incrementReads();
-					ComputeHashTask computeHashTask = new ComputeHashTask(key, payloadBytes);
+					ComputeHashTask computeHashTask = new ComputeHashTask(key, Protocol.ALGORITHM_SHA1, 0, ByteBuffer.wrap(payloadBytes), false);
 					currentTask = computeHashTask;
 				} catch (IOException | InterruptedException e) {
 					// Abnormal termination
@@ -135,7 +136,7 @@ public class WorkerThread_old implements Runnable {
 		if (currentTask instanceof ComputeHashTask) {
 			if (debug) System.out.println("Worker thread " + workerThreadID + " computing hash of byte array...");
 			HashComputer hashComputer = new HashComputer();
-			String sha = hashComputer.SHA1FromBytes(((ComputeHashTask) currentTask).getBytes());
+			String sha = hashComputer.SHA1FromBuffer(((ComputeHashTask) currentTask).getBuffer());
 			if (debug) System.out.println("Worker thread " + workerThreadID + " computed hash: " + sha);
 			statTracker.incrementHashes();
 			return sha;
@@ -143,14 +144,14 @@ public class WorkerThread_old implements Runnable {
 		
 		// Reply to client with computed hash string
 		else if (currentTask instanceof ReplyToClientTask) {
-			ByteBuffer buffer = ByteBuffer.allocate(((ReplyToClientTask) currentTask).getReplyHash().getBytes().length);
+			ByteBuffer buffer = ByteBuffer.allocate(((ReplyToClientTask) currentTask).getReply().remaining());
 			if (debug) System.out.println("Worker thread " + workerThreadID + " writing data to channel...");
 			SelectionKey key = currentTask.getKey();
 			synchronized (key) {
 				SocketChannel clientChannel = (SocketChannel) key.channel();
 				int read = 0;
 				buffer.rewind();
-				buffer.put(((ReplyToClientTask) currentTask).getReplyHash().getBytes());
+				buffer.put(((ReplyToClientTask) currentTask).getReply().duplicate());
 				buffer.rewind();
 				try {
 					while (buffer.hasRemaining() && read != -1) {
@@ -1,22 +1,53 @@
 package cs455.scaling.server.tasks;
 
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 
 // Task created when data is available to be hashed by the server
 public class ComputeHashTask extends Task {
 
-	private byte[] data;
+	private ByteBuffer data;		// Message payload, flipped for reading
+	private boolean pooled;			// Whether data came from the buffer pool and has to go back to it
+	private ByteBuffer reply;		// Streaming: the reply, already hashed while the payload was read
+	private byte algorithm;
+	private int requestID;
 	private SelectionKey key;
 	
-	public ComputeHashTask(SelectionKey key, byte[] packet) {
+	public ComputeHashTask(SelectionKey key, byte algorithm, int requestID, ByteBuffer packet, boolean pooled) {
 		this.data = packet;
+		this.pooled = pooled;
+		this.algorithm = algorithm;
+		this.requestID = requestID;
 		this.key = key;
 	}
 	
-	public byte[] getBytes() {
-		byte[] dataCopy = new byte[data.length];
-		dataCopy = data;
-		return dataCopy;
+	// A request whose payload was hashed as it arrived, so only the reply is left to send
+	public ComputeHashTask(SelectionKey key, byte algorithm, int requestID, ByteBuffer reply) {
+		this.reply = reply;
+		this.algorithm = algorithm;
+		this.requestID = requestID;
+		this.key = key;
+	}
+	
+	// Null unless the payload was hashed as it arrived
+	public ByteBuffer getReply() {
+		return reply;
+	}
+	
+	public ByteBuffer getBuffer() {
+		return data;
+	}
+	
+	public boolean isPooled() {
+		return pooled;
+	}
+	
+	public byte getAlgorithm() {
+		return algorithm;
+	}
+	
+	public int getRequestID() {
+		return requestID;
 	}
 	
 	public SelectionKey getKey(){
@@ -1,25 +1,25 @@
 package cs455.scaling.server.tasks;
 
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 
 // Task created when a hash is ready to be returned to the client
 public class ReplyToClientTask extends Task {
 	
 	private SelectionKey key;
-	private String replyHash;
+	private ByteBuffer reply;		// Encoded reply, ready to be written
 
-	public ReplyToClientTask(SelectionKey key, String replyHash) {
+	public ReplyToClientTask(SelectionKey key, ByteBuffer reply) {
 		this.key = key;
-		this.replyHash = replyHash;
+		this.reply = reply;
 	}
 	
 	public SelectionKey getKey() {
 		return key;
 	}
 	
-	public String getReplyHash() {
-		String reply = new String();
-		reply = replyHash;
+	public ByteBuffer getReply() {
 		return reply;
 	}
+
 }
@@ -6,10 +6,60 @@ import java.nio.channels.SelectionKey;
  * 1. Read Message
  * 2. Compute hash
  * 3. Write Message
+ * 
+ * Every task carries System.nanoTime() stamps for each point it passes, which the worker turns into
+ * per-stage latencies.
  */
 public abstract class Task {
 	
+	private long arrivalTime;		// When the reactor saw the data this task's request came in on
+	private long enqueueTime;		// Handed to the thread pool
+	private long dequeueTime;		// Taken off a queue by or for a worker
+	private long startTime;			// Worker began the task's I/O or hashing
+	private long completeTime;		// Worker finished it
+	
 	public abstract SelectionKey getKey();
+	
+	public void markEnqueued(long now) {
+		enqueueTime = now;
+		if (arrivalTime == 0)
+			arrivalTime = now;
+	}
+	
+	public void markDequeued(long now) {
+		dequeueTime = now;
+	}
+	
+	public void markStarted(long now) {
+		startTime = now;
+	}
+	
+	public void markCompleted(long now) {
+		completeTime = now;
+	}
+	
+	// Follow-up tasks inherit the arrival time of the task that produced them
+	public void setArrivalTime(long arrivalTime) {
+		this.arrivalTime = arrivalTime;
+	}
+	
+	public long getArrivalTime() {
+		return arrivalTime;
+	}
+	
+	public long getEnqueueTime() {
+		return enqueueTime;
+	}
+	
+	public long getDequeueTime() {
+		return dequeueTime;
+	}
+	
+	public long getStartTime() {
+		return startTime;
+	}
+	
+	public long getCompleteTime() {
+		return completeTime;
+	}
 }
-
-
@@ -0,0 +1,110 @@
+package cs455.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Pool of fixed size direct ByteBuffers. Buffers are carved out of larger off-heap slabs so the pool
+// grows in big steps and never hands its memory back to the garbage collector. Each thread keeps a
+// small cache of free buffers in front of the shared free list, so the common acquire/release pair
+// touches no shared state at all.
+public class BufferPool {
+	
+	private final int bufferSize;							// Capacity of each buffer handed out
+	private final int buffersPerSlab;						// Buffers carved from each direct allocation
+	private final int threadCacheSize;						// Free buffers a thread may keep for itself
+	private final ConcurrentLinkedQueue<ByteBuffer> sharedFree;
+	private final ThreadLocal<ArrayDeque<ByteBuffer>> threadCache;
+	private final LongAdder hits;							// Acquires served from a cache or the free list
+	private final LongAdder misses;							// Acquires that had to allocate a new slab
+	private final AtomicInteger outstanding;				// Buffers acquired and not yet released
+	private final AtomicInteger slabCount;
+	
+	public BufferPool(int bufferSize, int buffersPerSlab, int threadCacheSize) {
+		this.bufferSize = bufferSize;
+		this.buffersPerSlab = buffersPerSlab;
+		this.threadCacheSize = threadCacheSize;
+		this.sharedFree = new ConcurrentLinkedQueue<ByteBuffer>();
+		this.threadCache = ThreadLocal.withInitial(() -> new ArrayDeque<ByteBuffer>(threadCacheSize));
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+		this.outstanding = new AtomicInteger();
+		this.slabCount = new AtomicInteger();
+	}
+	
+	// Returns a cleared buffer of bufferSize bytes
+	public ByteBuffer acquire() {
+		outstanding.incrementAndGet();
+		ByteBuffer buffer = threadCache.get().pollFirst();
+		if (buffer == null)
+			buffer = sharedFree.poll();
+		if (buffer != null) {
+			hits.increment();
+			return buffer;
+		}
+		misses.increment();
+		return allocateSlab();
+	}
+	
+	// Hand a buffer obtained from acquire() back to the pool
+	public void release(ByteBuffer buffer) {
+		buffer.clear();
+		outstanding.decrementAndGet();
+		ArrayDeque<ByteBuffer> cache = threadCache.get();
+		if (cache.size() < threadCacheSize)
+			cache.addFirst(buffer);
+		else
+			sharedFree.add(buffer);
+	}
+	
+	// Move the calling thread's cached buffers to the shared free list, for threads that are about to end
+	public void flushThreadCache() {
+		ArrayDeque<ByteBuffer> cache = threadCache.get();
+		ByteBuffer buffer;
+		while ((buffer = cache.pollFirst()) != null)
+			sharedFree.add(buffer);
+		threadCache.remove();
+	}
+	
+	// Carve a new slab into buffers, keep one for the caller and share the rest
+	private ByteBuffer allocateSlab() {
+		ByteBuffer slab = ByteBuffer.allocateDirect(bufferSize * buffersPerSlab);
+		slabCount.incrementAndGet();
+		ByteBuffer first = null;
+		for (int i = 0; i < buffersPerSlab; i++) {
+			slab.limit((i + 1) * bufferSize).position(i * bufferSize);
+			ByteBuffer buffer = slab.slice();
+			if (first == null)
+				first = buffer;
+			else
+				sharedFree.add(buffer);
+		}
+		return first;
+	}
+	
+	public int getBufferSize() {
+		return bufferSize;
+	}
+	
+	public long getHits() {
+		return hits.sum();
+	}
+	
+	public long getMisses() {
+		return misses.sum();
+	}
+	
+	public int getOutstanding() {
+		return outstanding.get();
+	}
+	
+	public long getAllocatedBytes() {
+		return (long) slabCount.get() * buffersPerSlab * bufferSize;
+	}
+	
+	public String getStats() {
+		return "Buffer pool hits: " + getHits() + "\tmisses: " + getMisses() + "\toutstanding: " + getOutstanding() + "\tallocated: " + (getAllocatedBytes() / 1024) + " KB";
+	}
+}
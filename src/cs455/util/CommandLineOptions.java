@@ -0,0 +1,68 @@
+package cs455.util;
+
+import java.util.HashMap;
+
+// Parses the optional "--name=value" flags that follow a node's positional arguments.
+// A bare "--name" is treated as a boolean flag set to true.
+public class CommandLineOptions {
+	
+	private final HashMap<String, String> values;		// Flag name -> raw value
+	
+	public CommandLineOptions(String[] args, int firstOption) {
+		values = new HashMap<String, String>();
+		for (int i = firstOption; i < args.length; i++) {
+			String arg = args[i];
+			if (!arg.startsWith("--") || arg.length() == 2)
+				throw new IllegalArgumentException("Unrecognized argument: " + arg);
+			int split = arg.indexOf('=');
+			if (split < 0)
+				values.put(arg.substring(2), "true");
+			else
+				values.put(arg.substring(2, split), arg.substring(split + 1));
+		}
+	}
+	
+	public String getString(String name, String defaultValue) {
+		String value = values.get(name);
+		return value == null ? defaultValue : value;
+	}
+	
+	public int getInt(String name, int defaultValue) {
+		String value = values.get(name);
+		if (value == null)
+			return defaultValue;
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("--" + name + " expects an integer, got: " + value);
+		}
+	}
+	
+	public long getLong(String name, long defaultValue) {
+		String value = values.get(name);
+		if (value == null)
+			return defaultValue;
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("--" + name + " expects an integer, got: " + value);
+		}
+	}
+	
+	public double getDouble(String name, double defaultValue) {
+		String value = values.get(name);
+		if (value == null)
+			return defaultValue;
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("--" + name + " expects a number, got: " + value);
+		}
+	}
+	
+	public boolean getBoolean(String name, boolean defaultValue) {
+		String value = values.get(name);
+		return value == null ? defaultValue : Boolean.parseBoolean(value);
+	}
+
+}
@@ -0,0 +1,51 @@
+package cs455.util;
+
+import java.nio.ByteBuffer;
+
+// A digest the server can compute and a client can ask for. Registered with DigestAlgorithms under a
+// wire id, which requests and replies carry, and a name for the command line. Implementations are
+// shared by every thread, so any state they need per call is kept per thread or allocated per call.
+public interface DigestAlgorithm {
+
+	// A running digest fed one piece of a payload at a time, for hashing a payload while it arrives.
+	// Owned by one thread at a time.
+	public interface Incremental {
+
+		// Adds the remaining bytes of data to the digest. The data is consumed.
+		public void update(ByteBuffer data);
+
+		// Writes the digest of everything added since the last finish into out at offset, and starts over
+		public void finish(byte[] out, int offset);
+	}
+
+	// Id carried in the algorithm byte of request and reply headers
+	public byte getId();
+
+	// Lower case name used by --algorithm
+	public String getName();
+
+	// Digest length in bytes
+	public int getLength();
+
+	// Whether the digest resists deliberate collisions, as opposed to only catching accidental corruption
+	public boolean isCryptographic();
+
+	// Writes the digest of the remaining bytes of data into out at offset. The data is consumed.
+	public void digest(ByteBuffer data, byte[] out, int offset);
+
+	// As digest(data, out, offset), free to spread the work over the given settings' threads. Only
+	// algorithms that can split a payload use them; null hashes on the calling thread.
+	public default void digest(ByteBuffer data, byte[] out, int offset, ParallelHashing parallel) {
+		digest(data, out, offset);
+	}
+
+	// Writes the digest of data into out at offset
+	public default void digest(byte[] data, byte[] out, int offset) {
+		digest(ByteBuffer.wrap(data), out, offset);
+	}
+
+	// A new running digest, or null if the algorithm can only hash a whole payload at once
+	public default Incremental newIncremental() {
+		return null;
+	}
+}
@@ -0,0 +1,212 @@
+package cs455.util;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.CRC32C;
+
+import cs455.message.Protocol;
+
+// Registry of the digest algorithms the server and clients know, looked up by wire id on every request
+// and by name when parsing the command line. SHA-1, SHA-256, CRC32C, xxHash64 and tree hashes over SHA-1
+// and SHA-256 are built in; further algorithms can be added with register() before the server starts.
+public class DigestAlgorithms {
+
+	private static final AtomicReferenceArray<DigestAlgorithm> BY_ID = new AtomicReferenceArray<DigestAlgorithm>(256);
+	private static final ArrayList<DigestAlgorithm> ALL = new ArrayList<DigestAlgorithm>();
+
+	public static final DigestAlgorithm SHA1 = register(new JcaDigest(Protocol.ALGORITHM_SHA1, "sha1", "SHA-1", 20));
+	public static final DigestAlgorithm SHA256 = register(new JcaDigest(Protocol.ALGORITHM_SHA256, "sha256", "SHA-256", 32));
+	public static final DigestAlgorithm CRC32C = register(new Crc32cDigest(Protocol.ALGORITHM_CRC32C));
+	public static final DigestAlgorithm XXH64 = register(new XxHash64(Protocol.ALGORITHM_XXH64));
+	public static final DigestAlgorithm SHA1_TREE = register(new TreeDigest(Protocol.ALGORITHM_SHA1_TREE, "sha1-tree", SHA1));
+	public static final DigestAlgorithm SHA256_TREE = register(new TreeDigest(Protocol.ALGORITHM_SHA256_TREE, "sha256-tree", SHA256));
+
+	// A JCA MessageDigest, one instance per thread so hashing never looks up a provider
+	private static final class JcaDigest implements DigestAlgorithm {
+		private final byte id;
+		private final String name;
+		private final int length;
+		private final String jcaName;
+		private final ThreadLocal<MessageDigest> digests;
+
+		JcaDigest(byte id, String name, String jcaName, int length) {
+			this.id = id;
+			this.name = name;
+			this.length = length;
+			this.jcaName = jcaName;
+			this.digests = ThreadLocal.withInitial(this::newDigest);
+		}
+
+		private MessageDigest newDigest() {
+			try {
+				return MessageDigest.getInstance(jcaName);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		@Override
+		public byte getId() {
+			return id;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public int getLength() {
+			return length;
+		}
+
+		@Override
+		public boolean isCryptographic() {
+			return true;
+		}
+
+		@Override
+		public void digest(ByteBuffer data, byte[] out, int offset) {
+			MessageDigest digest = digests.get();
+			digest.update(data);
+			finish(digest, out, offset);
+		}
+
+		@Override
+		public Incremental newIncremental() {
+			MessageDigest digest = newDigest();
+			return new Incremental() {
+				@Override
+				public void update(ByteBuffer data) {
+					digest.update(data);
+				}
+
+				@Override
+				public void finish(byte[] out, int offset) {
+					JcaDigest.this.finish(digest, out, offset);
+				}
+			};
+		}
+
+		private void finish(MessageDigest digest, byte[] out, int offset) {
+			try {
+				digest.digest(out, offset, length);
+			} catch (DigestException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+	}
+
+	// CRC32C, which the JVM computes with the CPU's CRC instructions. Written big endian.
+	private static final class Crc32cDigest implements DigestAlgorithm {
+		private final byte id;
+
+		Crc32cDigest(byte id) {
+			this.id = id;
+		}
+
+		@Override
+		public byte getId() {
+			return id;
+		}
+
+		@Override
+		public String getName() {
+			return "crc32c";
+		}
+
+		@Override
+		public int getLength() {
+			return 4;
+		}
+
+		@Override
+		public boolean isCryptographic() {
+			return false;
+		}
+
+		@Override
+		public void digest(ByteBuffer data, byte[] out, int offset) {
+			CRC32C crc = new CRC32C();
+			crc.update(data);
+			write(crc, out, offset);
+		}
+
+		@Override
+		public Incremental newIncremental() {
+			CRC32C crc = new CRC32C();
+			return new Incremental() {
+				@Override
+				public void update(ByteBuffer data) {
+					crc.update(data);
+				}
+
+				@Override
+				public void finish(byte[] out, int offset) {
+					write(crc, out, offset);
+					crc.reset();
+				}
+			};
+		}
+
+		private static void write(CRC32C crc, byte[] out, int offset) {
+			int value = (int) crc.getValue();
+			out[offset] = (byte) (value >>> 24);
+			out[offset + 1] = (byte) (value >>> 16);
+			out[offset + 2] = (byte) (value >>> 8);
+			out[offset + 3] = (byte) value;
+		}
+	}
+
+	// Adds an algorithm. Its id and name must not be taken already.
+	public static synchronized DigestAlgorithm register(DigestAlgorithm algorithm) {
+		int index = algorithm.getId() & 0xFF;
+		if (index == 0 || algorithm.getLength() < 1 || algorithm.getLength() > 255)
+			throw new IllegalArgumentException("Digest algorithm " + algorithm.getName() + " needs an id from 1 to 255 and a length from 1 to 255 bytes");
+		for (DigestAlgorithm existing : ALL) {
+			if (existing.getId() == algorithm.getId() || existing.getName().equals(algorithm.getName()))
+				throw new IllegalArgumentException("Digest algorithm " + algorithm.getName() + " clashes with " + existing.getName());
+		}
+		ALL.add(algorithm);
+		BY_ID.set(index, algorithm);
+		return algorithm;
+	}
+
+	// Null if no algorithm has this id
+	public static DigestAlgorithm forId(byte id) {
+		return BY_ID.get(id & 0xFF);
+	}
+
+	public static synchronized DigestAlgorithm parse(String name) {
+		for (DigestAlgorithm algorithm : ALL) {
+			if (algorithm.getName().equalsIgnoreCase(name))
+				return algorithm;
+		}
+		throw new IllegalArgumentException("Unknown digest algorithm: " + name + ", expected one of " + names());
+	}
+
+	// A comma separated list of names, as --algorithm takes them
+	public static DigestAlgorithm[] parseList(String names) {
+		String[] items = names.split(",");
+		DigestAlgorithm[] algorithms = new DigestAlgorithm[items.length];
+		for (int i = 0; i < items.length; i++)
+			algorithms[i] = parse(items[i].trim());
+		return algorithms;
+	}
+
+	public static synchronized List<DigestAlgorithm> all() {
+		return new ArrayList<DigestAlgorithm>(ALL);
+	}
+
+	public static synchronized String names() {
+		String names = "";
+		for (DigestAlgorithm algorithm : ALL)
+			names += (names.isEmpty() ? "" : "|") + algorithm.getName();
+		return names;
+	}
+}
@@ -1,25 +1,112 @@
 package cs455.util;
 
-import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
+// SHA-1 hashing and hex output. Each thread keeps its own MessageDigest, so hashing never looks up a
+// provider or allocates a digest, and hex output is written with a lookup table straight into a
+// caller-supplied array or buffer instead of going through BigInteger and String.format. Requests can
+// ask for other algorithms too; those are looked up in DigestAlgorithms.
 public class HashComputer {
 	
-	// Takes a byte array as input and returns an integer hash value using the SHA1 algorithm
-	public String SHA1FromBytes(byte[] data) {
-		MessageDigest digest;
+	public static final int SHA1_LENGTH = 20;			// Raw digest length in bytes
+	public static final int SHA1_HEX_LENGTH = 40;		// Digest length as lower case hex characters
+	
+	private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+	
+	private static final ThreadLocal<MessageDigest> SHA1 = ThreadLocal.withInitial(() -> {
 		try {
-			digest = MessageDigest.getInstance("SHA1");
-			byte[] hash = digest.digest(data);
-			BigInteger hashInt = new BigInteger(1, hash);
-			
-			return String.format("%40s", hashInt.toString(16)).replaceAll(" ", "0");
+			return MessageDigest.getInstance("SHA1");
 		} catch (NoSuchAlgorithmException e) {
-			System.out.println(e);
+			throw new IllegalStateException(e);
+		}
+	});
+	
+	// Takes a byte array as input and returns the SHA1 hash as 40 hex characters
+	public String SHA1FromBytes(byte[] data) {
+		byte[] hex = new byte[SHA1_HEX_LENGTH];
+		SHA1Hex(data, hex, 0);
+		return new String(hex, StandardCharsets.US_ASCII);
+	}
+	
+	// Same as SHA1FromBytes for the remaining bytes of a buffer
+	public String SHA1FromBuffer(ByteBuffer data) {
+		byte[] hex = new byte[SHA1_HEX_LENGTH];
+		SHA1Hex(data, hex, 0);
+		return new String(hex, StandardCharsets.US_ASCII);
+	}
+	
+	// Writes the raw 20 byte digest of data into out at offset
+	public void SHA1(byte[] data, byte[] out, int offset) {
+		MessageDigest digest = SHA1.get();
+		digest.update(data);
+		finish(digest, out, offset);
+	}
+	
+	// Writes the raw 20 byte digest of the remaining bytes of data into out at offset.
+	// Direct buffers are hashed in place without being copied onto the heap.
+	public void SHA1(ByteBuffer data, byte[] out, int offset) {
+		MessageDigest digest = SHA1.get();
+		digest.update(data);
+		finish(digest, out, offset);
+	}
+	
+	// Writes the digest of data into out at offset as 40 hex characters
+	public void SHA1Hex(byte[] data, byte[] out, int offset) {
+		SHA1(data, out, offset + SHA1_HEX_LENGTH - SHA1_LENGTH);
+		expandHexInPlace(out, offset);
+	}
+	
+	// Writes the digest of the remaining bytes of data into out at offset as 40 hex characters
+	public void SHA1Hex(ByteBuffer data, byte[] out, int offset) {
+		SHA1(data, out, offset + SHA1_HEX_LENGTH - SHA1_LENGTH);
+		expandHexInPlace(out, offset);
+	}
+	
+	// A raw digest as lower case hex
+	public static String toHex(byte[] digest) {
+		byte[] hex = new byte[2 * digest.length];
+		toHex(digest, 0, digest.length, hex, 0);
+		return new String(hex, StandardCharsets.US_ASCII);
+	}
+	
+	// Writes length bytes of raw digest as hex characters at the buffer's position
+	public static void toHex(byte[] digest, int offset, int length, ByteBuffer out) {
+		for (int i = offset; i < offset + length; i++) {
+			out.put(HEX_DIGITS[(digest[i] >> 4) & 0xf]);
+			out.put(HEX_DIGITS[digest[i] & 0xf]);
+		}
+	}
+	
+	// Writes length bytes of raw digest as hex characters into out at outOffset
+	public static void toHex(byte[] digest, int offset, int length, byte[] out, int outOffset) {
+		for (int i = 0; i < length; i++) {
+			int b = digest[offset + i];
+			out[outOffset + 2 * i] = HEX_DIGITS[(b >> 4) & 0xf];
+			out[outOffset + 2 * i + 1] = HEX_DIGITS[b & 0xf];
+		}
+	}
+	
+	private static void finish(MessageDigest digest, byte[] out, int offset) {
+		try {
+			digest.digest(out, offset, SHA1_LENGTH);
+		} catch (DigestException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+	
+	// The raw digest sits in the last 20 bytes of the 40 byte hex field. Expanding front to back is
+	// safe because each raw byte is read before the two characters written over it.
+	private static void expandHexInPlace(byte[] out, int offset) {
+		int raw = offset + SHA1_HEX_LENGTH - SHA1_LENGTH;
+		for (int i = 0; i < SHA1_LENGTH; i++) {
+			int b = out[raw + i];
+			out[offset + 2 * i] = HEX_DIGITS[(b >> 4) & 0xf];
+			out[offset + 2 * i + 1] = HEX_DIGITS[b & 0xf];
 		}
-		
-		return null;
 	}
 
 }
@@ -0,0 +1,151 @@
+package cs455.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Lock-free latency histogram in the style of HdrHistogram. Values are nanoseconds, bucketed
+// log-linearly: each power of two is split into SUB_BUCKETS equal slots, so any recorded value is
+// reported within about 3% of its true size. Recording takes a few lock-free updates, and counts are
+// never reset; intervals are worked out by diffing against the previous snapshot.
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int MAX_EXPONENT = 42;			// Values are clamped to about 73 minutes
+	private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+	private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts;
+	private final LongAdder sum;						// Exact total of recorded values
+	private final LongAccumulator max;					// Largest value since startup
+	private final LongAccumulator intervalMax;			// Largest value since the last interval snapshot
+	private long[] previous;							// Counts at the last interval snapshot
+	private long previousSum;
+
+	public LatencyHistogram() {
+		this.counts = new AtomicLongArray(BUCKET_COUNT);
+		this.sum = new LongAdder();
+		this.max = new LongAccumulator(Math::max, 0);
+		this.intervalMax = new LongAccumulator(Math::max, 0);
+		this.previous = new long[BUCKET_COUNT];
+	}
+
+	public void record(long nanos) {
+		long value = Math.min(Math.max(nanos, 0), MAX_VALUE);
+		counts.incrementAndGet(indexOf(value));
+		sum.add(value);
+		max.accumulate(value);
+		intervalMax.accumulate(value);
+	}
+
+	private static int indexOf(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS;
+		return ((shift + 1) << SUB_BUCKET_BITS) + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+	}
+
+	// Largest value that lands in the given bucket
+	private static long highestValueAt(int index) {
+		int bucket = index >>> SUB_BUCKET_BITS;
+		long sub = index & (SUB_BUCKETS - 1);
+		if (bucket == 0)
+			return sub;
+		int shift = bucket - 1;
+		return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+	}
+
+	// Everything recorded since startup
+	public Snapshot snapshot() {
+		long[] current = new long[BUCKET_COUNT];
+		for (int i = 0; i < BUCKET_COUNT; i++)
+			current[i] = counts.get(i);
+		return new Snapshot(current, sum.sum(), max.get());
+	}
+
+	// Everything recorded since the previous call
+	public synchronized Snapshot intervalSnapshot() {
+		long[] current = new long[BUCKET_COUNT];
+		long[] delta = new long[BUCKET_COUNT];
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			current[i] = counts.get(i);
+			delta[i] = current[i] - previous[i];
+		}
+		previous = current;
+		long currentSum = sum.sum();
+		long deltaSum = currentSum - previousSum;
+		previousSum = currentSum;
+		return new Snapshot(delta, deltaSum, intervalMax.getThenReset());
+	}
+
+	// Immutable copy of the bucket counts
+	public static final class Snapshot {
+
+		private final long[] counts;
+		private final long count;
+		private final long sum;
+		private final long max;
+
+		private Snapshot(long[] counts, long sum, long max) {
+			long total = 0;
+			for (long bucketCount : counts)
+				total += bucketCount;
+			this.counts = counts;
+			this.count = total;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		// What was recorded between an earlier cumulative snapshot and this one, for readers that keep their
+		// own interval instead of sharing intervalSnapshot(). The max is the top of the highest bucket used.
+		public Snapshot since(Snapshot earlier) {
+			long[] delta = new long[counts.length];
+			long deltaMax = 0;
+			for (int i = 0; i < counts.length; i++) {
+				delta[i] = counts[i] - earlier.counts[i];
+				if (delta[i] > 0)
+					deltaMax = Math.min(highestValueAt(i), max);
+			}
+			return new Snapshot(delta, sum - earlier.sum, deltaMax);
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		// Sum of the recorded values, which may run slightly ahead of the bucket counts while recording is under way
+		public long getSum() {
+			return sum;
+		}
+
+		public long getMax() {
+			return max;
+		}
+
+		// Value at or below which the given fraction of recordings fall, e.g. 0.99 for p99
+		public long getValueAtPercentile(double fraction) {
+			if (count == 0)
+				return 0;
+			long rank = Math.max(1, (long) Math.ceil(fraction * count));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank)
+					return Math.min(highestValueAt(i), max);
+			}
+			return max;
+		}
+
+		public long getMean() {
+			return count == 0 ? 0 : sum / count;
+		}
+
+		// p50/p99/p999/max in microseconds
+		public String toString() {
+			return String.format("%.1f/%.1f/%.1f/%.1f", getValueAtPercentile(0.50) / 1000.0, getValueAtPercentile(0.99) / 1000.0,
+					getValueAtPercentile(0.999) / 1000.0, max / 1000.0);
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package cs455.util;
+
+import java.util.concurrent.ForkJoinPool;
+
+// Threads a server hashes the chunks of large tree-digest payloads on, and the payload size at which
+// it starts doing so. Each server owns one and hands it to every digest call, so two servers in one
+// JVM keep their own settings; code that passes none hashes every payload on the calling thread.
+public class ParallelHashing {
+
+	private final ForkJoinPool pool;
+	private final int threshold;			// Smallest payload, in bytes, that is split over the pool
+
+	public ParallelHashing(ForkJoinPool pool, int threshold) {
+		if (threshold < 1)
+			throw new IllegalArgumentException("The parallel hashing threshold must be at least 1 byte");
+		this.pool = pool;
+		this.threshold = threshold;
+	}
+
+	// A pool of --hash-parallelism threads, splitting payloads of at least --parallel-hash-threshold bytes
+	public static ParallelHashing fromOptions(CommandLineOptions options) {
+		int parallelism = options.getInt("hash-parallelism", Runtime.getRuntime().availableProcessors());
+		int threshold = options.getInt("parallel-hash-threshold", 4 * TreeDigest.CHUNK_SIZE);
+		if (parallelism < 1 || threshold < 1)
+			throw new IllegalArgumentException("--hash-parallelism and --parallel-hash-threshold must be at least 1");
+		return new ParallelHashing(new ForkJoinPool(parallelism), threshold);
+	}
+
+	public boolean shouldSplit(int payloadLength) {
+		return payloadLength >= threshold;
+	}
+
+	public ForkJoinPool getPool() {
+		return pool;
+	}
+
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	public static String usage() {
+		return "[--hash-parallelism=<threads>] [--parallel-hash-threshold=<bytes>]";
+	}
+}
@@ -1,71 +1,216 @@
 package cs455.util;
 
-// Simple collection of integers that gets passed around the system and adjusted according to data flow
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Collection of counters that gets passed around the system and adjusted according to data flow.
+// Counters are striped LongAdders so hot paths never lock; they only ever grow, and interval
+// figures come from diffing against the previous snapshot, so nothing recorded between two
+// status lines can be lost to a reset.
 public class StatTracker {
-	
-	private int reads;
-	private int writes;
-	private int hashes;
-	private int connections;
-	private long time;
-	
+
+	// Pipeline stages with a latency histogram each
+	public enum Stage {
+		QUEUE_WAIT,		// Task handed to the thread pool until a worker picks it up
+		READ,			// One read task's socket reads
+		HASH,			// Hashing one request and building its reply
+		WRITE,			// Handing one reply to the connection, including any write it performs
+		END_TO_END		// Reactor seeing the request's data until its reply is handed over
+	}
+
+	private final LongAdder reads = new LongAdder();
+	private final LongAdder writes = new LongAdder();
+	private final LongAdder hashes = new LongAdder();
+	private final AtomicInteger connections = new AtomicInteger();
+	private final LongAdder timeouts = new LongAdder();		// Connections closed for missing a deadline
+	private final LongAdder bytesRead = new LongAdder();
+	private final LongAdder bytesWritten = new LongAdder();
+	private final LongAdder writeCalls = new LongAdder();		// Gathering write calls made for replies
+	private final LongAdder batchedReplies = new LongAdder();	// Replies completed by those calls
+	private final LongAccumulator largestBatch = new LongAccumulator(Math::max, 0);	// Largest batch since the last snapshot
+	private final LatencyHistogram[] latencies;
+	private volatile long time;
+
+	private Interval last;				// Cumulative totals at the previous snapshot
+
 	public StatTracker() {
-		reads = 0;
-		writes = 0;
-		hashes = 0;
-		connections = 0;
+		last = new Interval(0, 0, 0, 0, 0, 0, 0, 0, 0, System.nanoTime(), null);
+		latencies = new LatencyHistogram[Stage.values().length];
+		for (int i = 0; i < latencies.length; i++)
+			latencies[i] = new LatencyHistogram();
 	}
-	
+
 	public void incrementReads() {
-		reads++;
+		reads.increment();
 	}
-	
+
 	public void incrementWrites() {
-		writes++;
+		writes.increment();
 	}
-	
+
 	public void incrementHashes() {
-		hashes++;
+		hashes.increment();
 	}
-	
+
 	public void incrementConnections() {
-		connections++;
+		connections.incrementAndGet();
 	}
-	
-	public void resetRW() {
-		reads = 0;
-		writes = 0;
+
+	public void decrementConnections() {
+		connections.decrementAndGet();
+	}
+
+	public void incrementTimeouts() {
+		timeouts.increment();
 	}
-	
+
+	public void addBytesRead(long bytes) {
+		bytesRead.add(bytes);
+	}
+
+	public void addBytesWritten(long bytes) {
+		bytesWritten.add(bytes);
+	}
+
+	public void addWriteBatch(int replies) {
+		writeCalls.increment();
+		batchedReplies.add(replies);
+		largestBatch.accumulate(replies);
+	}
+
+	public void recordLatency(Stage stage, long nanos) {
+		latencies[stage.ordinal()].record(nanos);
+	}
+
+	// Latency histograms covering everything since startup, indexed by Stage ordinal
+	public LatencyHistogram.Snapshot[] getLatencyTotals() {
+		LatencyHistogram.Snapshot[] totals = new LatencyHistogram.Snapshot[latencies.length];
+		for (int i = 0; i < latencies.length; i++)
+			totals[i] = latencies[i].snapshot();
+		return totals;
+	}
+
+	// Counts since the previous call. Only the status printer calls this, so the lock is off the hot path.
+	public synchronized Interval snapshot() {
+		long now = System.nanoTime();
+		LatencyHistogram.Snapshot[] intervalLatencies = new LatencyHistogram.Snapshot[latencies.length];
+		for (int i = 0; i < latencies.length; i++)
+			intervalLatencies[i] = latencies[i].intervalSnapshot();
+		Interval total = new Interval(reads.sum(), writes.sum(), hashes.sum(), bytesRead.sum(), bytesWritten.sum(), writeCalls.sum(), batchedReplies.sum(), largestBatch.getThenReset(), connections.get(), now, intervalLatencies);
+		Interval delta = total.minus(last);
+		last = total;
+		return delta;
+	}
+
 	public void setTime(long time){
 		this.time = time;
 	}
-	
+
 	public long getTime(){
 		return this.time;
 	}
-	
-	public void decrementConnections() {
-		connections--;
+
+	// Totals since startup
+	public long getReadCount() {
+		return reads.sum();
 	}
-	
-	public int getReadCount() {
-		return reads;
+
+	public long getWriteCount() {
+		return writes.sum();
 	}
-	
-	public int getWriteCount() {
-		return writes;
+
+	public long getHashCount() {
+		return hashes.sum();
 	}
-	
-	public int getHashCount() {
-		return hashes;
+
+	public long getBytesRead() {
+		return bytesRead.sum();
 	}
-	
-	public int getThroughput() {
-		return (reads + writes) / 2;
+
+	public long getBytesWritten() {
+		return bytesWritten.sum();
 	}
-	
+
+	public long getWriteCallCount() {
+		return writeCalls.sum();
+	}
+
+	public long getBatchedReplyCount() {
+		return batchedReplies.sum();
+	}
+
 	public int getConnections() {
-		return connections;
+		return connections.get();
+	}
+
+	public long getTimeoutCount() {
+		return timeouts.sum();
+	}
+
+	// Immutable view of the counters over one interval (or cumulative totals, inside StatTracker)
+	public static final class Interval {
+
+		public final long reads;
+		public final long writes;
+		public final long hashes;
+		public final long bytesRead;
+		public final long bytesWritten;
+		public final long writeCalls;
+		public final long batchedReplies;
+		public final long largestBatch;
+		public final int connections;		// Live connections when the snapshot was taken
+		public final long nanos;			// Interval length, or the timestamp for totals
+		private final LatencyHistogram.Snapshot[] latencies;
+
+		Interval(long reads, long writes, long hashes, long bytesRead, long bytesWritten, long writeCalls, long batchedReplies, long largestBatch, int connections, long nanos, LatencyHistogram.Snapshot[] latencies) {
+			this.reads = reads;
+			this.writes = writes;
+			this.hashes = hashes;
+			this.bytesRead = bytesRead;
+			this.bytesWritten = bytesWritten;
+			this.writeCalls = writeCalls;
+			this.batchedReplies = batchedReplies;
+			this.largestBatch = largestBatch;
+			this.connections = connections;
+			this.nanos = nanos;
+			this.latencies = latencies;
+		}
+
+		private Interval minus(Interval previous) {
+			return new Interval(reads - previous.reads, writes - previous.writes, hashes - previous.hashes, bytesRead - previous.bytesRead, bytesWritten - previous.bytesWritten,
+					writeCalls - previous.writeCalls, batchedReplies - previous.batchedReplies, largestBatch, connections, nanos - previous.nanos, latencies);
+		}
+
+		// Latencies recorded during the interval
+		public LatencyHistogram.Snapshot getLatency(Stage stage) {
+			return latencies[stage.ordinal()];
+		}
+
+		public double getSeconds() {
+			return nanos / 1e9;
+		}
+
+		// Messages per second, averaging requests read and replies written
+		public long getThroughput() {
+			return nanos <= 0 ? 0 : (long) ((reads + writes) / 2.0 / getSeconds());
+		}
+
+		public long getKBPerSecondIn() {
+			return nanos <= 0 ? 0 : (long) (bytesRead / 1024.0 / getSeconds());
+		}
+
+		public long getKBPerSecondOut() {
+			return nanos <= 0 ? 0 : (long) (bytesWritten / 1024.0 / getSeconds());
+		}
+
+		public double getRepliesPerWrite() {
+			return writeCalls == 0 ? 0.0 : (double) batchedReplies / writeCalls;
+		}
+
+		// Write calls avoided compared to writing each reply on its own
+		public long getWriteCallsSaved() {
+			return Math.max(0, batchedReplies - writeCalls);
+		}
 	}
 }
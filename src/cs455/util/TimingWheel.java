@@ -0,0 +1,110 @@
+package cs455.util;
+
+import java.util.List;
+
+// Hashed timing wheel for large numbers of coarse deadlines. Time is cut into ticks and a deadline goes
+// in the slot for its tick, modulo the number of slots, with a count of whole turns still to wait, so
+// scheduling and cancelling are O(1) and each tick only looks at its own slot. Deadlines fire up to one
+// tick late. Not thread safe: one thread owns the wheel, such as a reactor's selector thread.
+public class TimingWheel<T> {
+
+	// A scheduled deadline. Each owner keeps one and reschedules it, so the wheel never allocates.
+	public static final class Entry<T> {
+		private final T item;
+		private long rounds;			// Full turns of the wheel left before it fires
+		private int slot;				// Slot it is linked into, -1 when not scheduled
+		private Entry<T> previous;
+		private Entry<T> next;
+
+		public Entry(T item) {
+			this.item = item;
+			this.slot = -1;
+		}
+
+		public T getItem() {
+			return item;
+		}
+
+		public boolean isScheduled() {
+			return slot >= 0;
+		}
+	}
+
+	private final long tickNanos;
+	private final long startTime;
+	private final Entry<T>[] slots;
+	private final int mask;
+	private long nextTick;				// First tick not yet processed
+	private int size;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public TimingWheel(long tickNanos, int slotCount, long now) {
+		if (tickNanos < 1 || slotCount < 1 || Integer.bitCount(slotCount) != 1)
+			throw new IllegalArgumentException("A timing wheel needs a positive tick and a power of two slots");
+		this.tickNanos = tickNanos;
+		this.startTime = now;
+		this.slots = (Entry<T>[]) new Entry[slotCount];
+		this.mask = slotCount - 1;
+		this.nextTick = 1;
+	}
+
+	// Schedules entry to fire at deadline, in System.nanoTime(), moving it if it was already scheduled.
+	// A deadline that has passed fires on the next tick.
+	public void schedule(Entry<T> entry, long deadline) {
+		if (entry.isScheduled())
+			cancel(entry);
+		long tick = Math.max(nextTick, (deadline - startTime + tickNanos - 1) / tickNanos);
+		entry.rounds = (tick - nextTick) / slots.length;
+		entry.slot = (int) (tick & mask);
+		entry.previous = null;
+		entry.next = slots[entry.slot];
+		if (entry.next != null)
+			entry.next.previous = entry;
+		slots[entry.slot] = entry;
+		size++;
+	}
+
+	public void cancel(Entry<T> entry) {
+		if (!entry.isScheduled())
+			return;
+		if (entry.previous != null)
+			entry.previous.next = entry.next;
+		else
+			slots[entry.slot] = entry.next;
+		if (entry.next != null)
+			entry.next.previous = entry.previous;
+		entry.previous = null;
+		entry.next = null;
+		entry.slot = -1;
+		size--;
+	}
+
+	// Processes every tick that has ended by now and adds the items of the entries that fired to expired.
+	// Fired entries are no longer scheduled, so the caller may reschedule them straight away.
+	public void advance(long now, List<T> expired) {
+		long lastTick = (now - startTime) / tickNanos;
+		for (; nextTick <= lastTick; nextTick++) {
+			Entry<T> entry = slots[(int) (nextTick & mask)];
+			while (entry != null) {
+				Entry<T> following = entry.next;
+				if (entry.rounds == 0) {
+					cancel(entry);
+					expired.add(entry.item);
+				}
+				else {
+					entry.rounds--;
+				}
+				entry = following;
+			}
+		}
+	}
+
+	// Time until the next tick ends, for bounding how long the owning thread sleeps
+	public long nanosUntilNextTick(long now) {
+		return Math.max(0, startTime + nextTick * tickNanos - now);
+	}
+
+	public int size() {
+		return size;
+	}
+}
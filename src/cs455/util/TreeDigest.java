@@ -0,0 +1,108 @@
+package cs455.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.RecursiveAction;
+
+// Chunked tree hash over a base algorithm, so one large payload can be hashed by several threads.
+// The payload is cut into CHUNK_SIZE pieces (the last one may be shorter, an empty payload is one empty
+// chunk) and each is hashed with the base algorithm. The digest is the base hash of
+//
+//     payload-length(8) chunk-size(4) | digest of chunk 0 | digest of chunk 1 | ...
+//
+// with lengths big endian. The tree is always two levels deep and the root binds the length, so a
+// chunk digest can never be passed off as a root or the other way round. The digest depends only on
+// the bytes, never on how the work was split: given ParallelHashing settings, payloads of at least their
+// threshold have their chunks hashed as fork-join tasks on their pool, anything else is hashed chunk by
+// chunk on the calling thread.
+public class TreeDigest implements DigestAlgorithm {
+
+	public static final int CHUNK_SIZE = 1 << 20;			// Fixed by the definition, changing it changes every digest
+	private static final int ROOT_HEADER_LENGTH = 12;
+
+	private final byte id;
+	private final String name;
+	private final DigestAlgorithm base;
+
+	// Hashes chunks first to last - 1 into their slots of the root input, splitting the range in halves
+	private final class ChunkTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final ByteBuffer data;
+		private final byte[] root;
+		private final int first;
+		private final int last;
+
+		ChunkTask(ByteBuffer data, byte[] root, int first, int last) {
+			this.data = data;
+			this.root = root;
+			this.first = first;
+			this.last = last;
+		}
+
+		@Override
+		protected void compute() {
+			if (last - first == 1) {
+				hashChunk(data, first, root);
+				return;
+			}
+			int middle = (first + last) >>> 1;
+			invokeAll(new ChunkTask(data, root, first, middle), new ChunkTask(data, root, middle, last));
+		}
+	}
+
+	public TreeDigest(byte id, String name, DigestAlgorithm base) {
+		this.id = id;
+		this.name = name;
+		this.base = base;
+	}
+
+	@Override
+	public byte getId() {
+		return id;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public int getLength() {
+		return base.getLength();
+	}
+
+	@Override
+	public boolean isCryptographic() {
+		return base.isCryptographic();
+	}
+
+	@Override
+	public void digest(ByteBuffer data, byte[] out, int offset) {
+		digest(data, out, offset, null);
+	}
+
+	@Override
+	public void digest(ByteBuffer data, byte[] out, int offset, ParallelHashing parallel) {
+		int length = data.remaining();
+		int chunks = Math.max(1, (length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+		byte[] root = new byte[ROOT_HEADER_LENGTH + chunks * base.getLength()];
+		ByteBuffer.wrap(root).putLong(length).putInt(CHUNK_SIZE);
+		if (chunks > 1 && parallel != null && parallel.shouldSplit(length)) {
+			parallel.getPool().invoke(new ChunkTask(data, root, 0, chunks));
+		}
+		else {
+			for (int i = 0; i < chunks; i++)
+				hashChunk(data, i, root);
+		}
+		data.position(data.limit());
+		base.digest(root, out, offset);
+	}
+
+	// Base digest of chunk i of data into its slot after the root header
+	private void hashChunk(ByteBuffer data, int i, byte[] root) {
+		ByteBuffer chunk = data.duplicate();
+		int start = data.position() + i * CHUNK_SIZE;
+		chunk.position(start);
+		chunk.limit(Math.min(data.limit(), start + CHUNK_SIZE));
+		base.digest(chunk, root, ROOT_HEADER_LENGTH + i * base.getLength());
+	}
+}
@@ -0,0 +1,105 @@
+package cs455.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// xxHash64 with seed 0, a non-cryptographic 64-bit hash that reads eight bytes per step in four
+// independent lanes, so it runs at close to memory speed. Good for catching corruption, useless against
+// someone who wants a collision. The digest is written big endian, the canonical form xxhsum prints.
+public class XxHash64 implements DigestAlgorithm {
+
+	private static final long PRIME_1 = 0x9E3779B185EBCA87L;
+	private static final long PRIME_2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long PRIME_3 = 0x165667B19E3779F9L;
+	private static final long PRIME_4 = 0x85EBCA77C2B2AE63L;
+	private static final long PRIME_5 = 0x27D4EB2F165667C5L;
+
+	private final byte id;
+
+	public XxHash64(byte id) {
+		this.id = id;
+	}
+
+	@Override
+	public byte getId() {
+		return id;
+	}
+
+	@Override
+	public String getName() {
+		return "xxh64";
+	}
+
+	@Override
+	public int getLength() {
+		return 8;
+	}
+
+	@Override
+	public boolean isCryptographic() {
+		return false;
+	}
+
+	@Override
+	public void digest(ByteBuffer data, byte[] out, int offset) {
+		long hash = hash(data);
+		data.position(data.limit());
+		for (int i = 7; i >= 0; i--) {
+			out[offset + i] = (byte) hash;
+			hash >>>= 8;
+		}
+	}
+
+	// Hash of the remaining bytes of data, which is left untouched
+	public static long hash(ByteBuffer data) {
+		ByteBuffer in = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		int i = in.position();
+		int limit = in.limit();
+		long hash;
+		if (limit - i >= 32) {
+			long lane1 = PRIME_1 + PRIME_2;
+			long lane2 = PRIME_2;
+			long lane3 = 0;
+			long lane4 = -PRIME_1;
+			for (; i + 32 <= limit; i += 32) {
+				lane1 = round(lane1, in.getLong(i));
+				lane2 = round(lane2, in.getLong(i + 8));
+				lane3 = round(lane3, in.getLong(i + 16));
+				lane4 = round(lane4, in.getLong(i + 24));
+			}
+			hash = Long.rotateLeft(lane1, 1) + Long.rotateLeft(lane2, 7) + Long.rotateLeft(lane3, 12) + Long.rotateLeft(lane4, 18);
+			hash = merge(hash, lane1);
+			hash = merge(hash, lane2);
+			hash = merge(hash, lane3);
+			hash = merge(hash, lane4);
+		}
+		else {
+			hash = PRIME_5;
+		}
+		hash += limit - in.position();
+
+		for (; i + 8 <= limit; i += 8)
+			hash = Long.rotateLeft(hash ^ round(0, in.getLong(i)), 27) * PRIME_1 + PRIME_4;
+		if (i + 4 <= limit) {
+			hash = Long.rotateLeft(hash ^ (in.getInt(i) & 0xFFFFFFFFL) * PRIME_1, 23) * PRIME_2 + PRIME_3;
+			i += 4;
+		}
+		for (; i < limit; i++)
+			hash = Long.rotateLeft(hash ^ (in.get(i) & 0xFF) * PRIME_5, 11) * PRIME_1;
+
+		hash ^= hash >>> 33;
+		hash *= PRIME_2;
+		hash ^= hash >>> 29;
+		hash *= PRIME_3;
+		hash ^= hash >>> 32;
+		return hash;
+	}
+
+	private static long round(long lane, long input) {
+		return Long.rotateLeft(lane + input * PRIME_2, 31) * PRIME_1;
+	}
+
+	private static long merge(long hash, long lane) {
+		return (hash ^ round(0, lane)) * PRIME_1 + PRIME_4;
+	}
+}